@@ -0,0 +1,22 @@
+package ar.com.threelegs.newrelic;
+
+public class AggregatedMetric {
+    public final String name;
+    public final String valueType;
+    public final int count;
+    public final double value;
+    public final double min;
+    public final double max;
+    public final double sumOfSquares;
+
+    public AggregatedMetric(String name, String valueType, int count, double value, double min, double max, double sumOfSquares) {
+        this.name = name;
+        this.valueType = valueType;
+        this.count = count;
+        this.value = value;
+        this.min = min;
+        this.max = max;
+        this.sumOfSquares = sumOfSquares;
+    }
+
+}
@@ -1,26 +1,137 @@
 package ar.com.threelegs.newrelic;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 import javax.management.MBeanServerConnection;
 
+import ar.com.threelegs.newrelic.MetricAggregator.Kind;
+import ar.com.threelegs.newrelic.jmx.AttachTarget;
 import ar.com.threelegs.newrelic.jmx.ConnectionException;
+import ar.com.threelegs.newrelic.jmx.ConnectionTimeoutException;
+import ar.com.threelegs.newrelic.jmx.JMXConnectionPool;
 import ar.com.threelegs.newrelic.jmx.JMXHelper;
 import ar.com.threelegs.newrelic.jmx.JMXTemplate;
+import ar.com.threelegs.newrelic.jmx.QueryPlan;
+import ar.com.threelegs.newrelic.util.BoundedFanOut;
 import ar.com.threelegs.newrelic.util.CassandraHelper;
+import ar.com.threelegs.newrelic.util.CassandraTables;
+import ar.com.threelegs.newrelic.util.CounterRates;
+import ar.com.threelegs.newrelic.util.LatencyHistogram;
+import ar.com.threelegs.newrelic.util.RingTopology;
+import ar.com.threelegs.newrelic.util.RingShard;
+import ar.com.threelegs.newrelic.util.RingTopologyCache;
+import ar.com.threelegs.newrelic.util.ShardSpool;
 
 import com.newrelic.metrics.publish.Agent;
 import com.newrelic.metrics.publish.util.Logger;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigException;
+import com.typesafe.config.ConfigUtil;
 
 public class CassandraRing extends Agent {
 
 	private static final Logger LOGGER = Logger.getLogger(CassandraRing.class);
-        private String name, jmxUsername, jmxPassword;
+	private static final int DEFAULT_PARALLELISM = 8;
+	private static final int DEFAULT_HOST_TIMEOUT = 20;
+	private static final int DEFAULT_TOPOLOGY_REFRESH = 300;
+	private static final String DEFAULT_HISTOGRAM_UNIT = "MICROSECONDS";
+	private static final int DEFAULT_TABLE_REFRESH = 900;
+	private static final int DEFAULT_TABLE_LIMIT = 50;
+	private static final int DEFAULT_TABLE_RANK_BATCH = 100;
+	private static final int DEFAULT_SPOOL_MAX_AGE = 180;
+	private static final String RING = "";
+	private static final String UNKNOWN_DC = "unknown";
+	private static final String GLOBAL_PREFIX = "Cassandra/global/";
+	private static final String DEFAULT_MAIN_CLASS = "org.apache.cassandra.service.CassandraDaemon";
+
+	private static final String METRICS = "org.apache.cassandra.metrics";
+	private static final QueryPlan HOST_PLAN = new QueryPlan();
+	private static final int READ_LATENCY = HOST_PLAN.add(METRICS, "Mean", "type=ClientRequest", "scope=Read", "name=Latency");
+	private static final int READ_LATENCY_UNIT = HOST_PLAN.add(METRICS, "DurationUnit", "type=ClientRequest", "scope=Read", "name=Latency");
+	private static final int WRITE_LATENCY = HOST_PLAN.add(METRICS, "Mean", "type=ClientRequest", "scope=Write", "name=Latency");
+	private static final int WRITE_LATENCY_UNIT = HOST_PLAN.add(METRICS, "DurationUnit", "type=ClientRequest", "scope=Write", "name=Latency");
+	private static final int READ_COUNT = HOST_PLAN.add(METRICS, "Count", "type=ClientRequest", "scope=Read", "name=Latency");
+	private static final int WRITE_COUNT = HOST_PLAN.add(METRICS, "Count", "type=ClientRequest", "scope=Write", "name=Latency");
+	// cumulative bucket counts before Cassandra 3.10, forward-decayed since then
+	private static final int READ_BUCKETS = HOST_PLAN.add(METRICS, "Values", "type=ClientRequest", "scope=Read", "name=Latency");
+	private static final int WRITE_BUCKETS = HOST_PLAN.add(METRICS, "Values", "type=ClientRequest", "scope=Write", "name=Latency");
+	// Cassandra 3.10 and later: the bucket counts recorded since the previous read
+	private static final int READ_RECENT_BUCKETS = HOST_PLAN.add(METRICS, "RecentValues", "type=ClientRequest", "scope=Read", "name=Latency");
+	private static final int WRITE_RECENT_BUCKETS = HOST_PLAN.add(METRICS, "RecentValues", "type=ClientRequest", "scope=Write", "name=Latency");
+	private static final int COMPACTION_PENDING = HOST_PLAN.add(METRICS, "Value", "type=Compaction", "name=PendingTasks");
+	private static final int MEMTABLE_FLUSH_PENDING = HOST_PLAN.add(METRICS, "Value", "type=ThreadPools", "path=internal", "scope=MemtablePostFlush", "name=PendingTasks");
+	private static final int STORAGE_LOAD = HOST_PLAN.add(METRICS, "Count", "type=Storage", "name=Load");
+	private static final int COMMIT_LOG_SIZE = HOST_PLAN.add(METRICS, "Value", "type=CommitLog", "name=TotalCommitLogSize");
+	private static final int KEY_CACHE_HIT_RATE = HOST_PLAN.add(METRICS, "Value", "type=Cache", "scope=KeyCache", "name=HitRate");
+	private static final int KEY_CACHE_SIZE = HOST_PLAN.add(METRICS, "Value", "type=Cache", "scope=KeyCache", "name=Size");
+	private static final int KEY_CACHE_ENTRIES = HOST_PLAN.add(METRICS, "Value", "type=Cache", "scope=KeyCache", "name=Entries");
+	private static final int KEY_CACHE_REQUESTS = HOST_PLAN.add(METRICS, "Count", "type=Cache", "scope=KeyCache", "name=Requests");
+	private static final int ROW_CACHE_HIT_RATE = HOST_PLAN.add(METRICS, "Value", "type=Cache", "scope=RowCache", "name=HitRate");
+	private static final int ROW_CACHE_SIZE = HOST_PLAN.add(METRICS, "Value", "type=Cache", "scope=RowCache", "name=Size");
+	private static final int ROW_CACHE_ENTRIES = HOST_PLAN.add(METRICS, "Value", "type=Cache", "scope=RowCache", "name=Entries");
+	private static final int ROW_CACHE_REQUESTS = HOST_PLAN.add(METRICS, "Count", "type=Cache", "scope=RowCache", "name=Requests");
+	private static final int DROPPED_MUTATIONS = HOST_PLAN.add(METRICS, "Count", "type=DroppedMessage", "scope=MUTATION", "name=Dropped");
+	private static final int DROPPED_HINTS = HOST_PLAN.add(METRICS, "Count", "type=DroppedMessage", "scope=HINT", "name=Dropped");
+
+	static {
+		HOST_PLAN.compile();
+	}
+
+	// ring-wide metrics, folded across hosts and reported once per cycle
+	private static final MetricAggregator GLOBAL = new MetricAggregator();
+	private static final int GLOBAL_READ_LATENCY = GLOBAL.declare("Cassandra/global/Latency/Reads", "millis", Kind.WEIGHTED_MEAN);
+	private static final int GLOBAL_WRITE_LATENCY = GLOBAL.declare("Cassandra/global/Latency/Writes", "millis", Kind.WEIGHTED_MEAN);
+	private static final int GLOBAL_STORAGE_DATA = GLOBAL.declare("Cassandra/global/Storage/Data", "bytes", Kind.SUM);
+	private static final int GLOBAL_STORAGE_COMMIT_LOG = GLOBAL.declare("Cassandra/global/Storage/CommitLog", "bytes", Kind.SUM);
+	private static final int GLOBAL_KEY_CACHE_HIT_RATE = GLOBAL.declare("Cassandra/global/Cache/KeyCache/HitRate", "rate", Kind.WEIGHTED_MEAN);
+	private static final int GLOBAL_KEY_CACHE_SIZE = GLOBAL.declare("Cassandra/global/Cache/KeyCache/Size", "bytes", Kind.SUM);
+	private static final int GLOBAL_KEY_CACHE_ENTRIES = GLOBAL.declare("Cassandra/global/Cache/KeyCache/Entries", "count", Kind.SUM);
+	private static final int GLOBAL_ROW_CACHE_HIT_RATE = GLOBAL.declare("Cassandra/global/Cache/RowCache/HitRate", "rate", Kind.WEIGHTED_MEAN);
+	private static final int GLOBAL_ROW_CACHE_SIZE = GLOBAL.declare("Cassandra/global/Cache/RowCache/Size", "bytes", Kind.SUM);
+	private static final int GLOBAL_ROW_CACHE_ENTRIES = GLOBAL.declare("Cassandra/global/Cache/RowCache/Entries", "count", Kind.SUM);
+	private static final int GLOBAL_DROPPED_MUTATIONS = GLOBAL.declare("Cassandra/global/DroppedMessage/Mutation", "count", Kind.SUM);
+	private static final int GLOBAL_DROPPED_HINTS = GLOBAL.declare("Cassandra/global/DroppedMessage/Hint", "count", Kind.SUM);
+	private static final int GLOBAL_READ_RATE = GLOBAL.declare("Cassandra/global/Requests/Reads", "ops/sec", Kind.SUM);
+	private static final int GLOBAL_WRITE_RATE = GLOBAL.declare("Cassandra/global/Requests/Writes", "ops/sec", Kind.SUM);
+
+	// monotonic counters, reported as interval deltas or rates
+	private static final int COUNTER_READS = 0;
+	private static final int COUNTER_WRITES = 1;
+	private static final int COUNTER_DROPPED_MUTATIONS = 2;
+	private static final int COUNTER_DROPPED_HINTS = 3;
+	private static final int COUNTERS = 4;
+
+	// marks a host whose latency histograms are read from RecentValues
+	private static final long[] RECENT = new long[0];
+
+	private String name, jmxUsername, jmxPassword;
 	private Config config;
+	private int parallelism;
+	private long hostTimeoutNanos;
+	private Map<String, BoundedFanOut.Pool> pools = new HashMap<String, BoundedFanOut.Pool>();
+	private RingTopologyCache topologyCache;
+	private String histogramUnit;
+	private Map<String, long[]> previousReads = new ConcurrentHashMap<String, long[]>();
+	private Map<String, long[]> previousWrites = new ConcurrentHashMap<String, long[]>();
+	private CounterRates counters = new CounterRates(COUNTERS);
+	// hosts whose poll is still running, e.g. one that timed out while blocked in RMI
+	private Set<String> busyHosts = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private CassandraTables tables;
+	private AttachTarget localNode;
+	private RingShard shard;
+	private ShardSpool spool;
+	private boolean mergeShards;
 
 	public CassandraRing(Config config, String pluginName, String pluginVersion) {
 		super(pluginName, pluginVersion);
@@ -35,6 +146,60 @@ public class CassandraRing extends Agent {
 		    this.jmxUsername = null;
 		    this.jmxPassword = null;
 		}
+
+		List<String> discoveryHosts = config.hasPath("discovery_hosts") ? config.getStringList("discovery_hosts")
+				: Collections.singletonList(config.getString("discovery_host"));
+		long topologyRefresh = TimeUnit.SECONDS.toMillis(config.hasPath("topology_refresh") ? config.getInt("topology_refresh") : DEFAULT_TOPOLOGY_REFRESH);
+		this.topologyCache = new RingTopologyCache(discoveryHosts, config.getString("jmx_port"), jmxUsername, jmxPassword, topologyRefresh);
+
+		this.histogramUnit = config.hasPath("latency_histogram_unit") ? config.getString("latency_histogram_unit") : DEFAULT_HISTOGRAM_UNIT;
+
+		if (config.hasPath("table_metrics") && config.getBoolean("table_metrics")) {
+			long tableRefresh = TimeUnit.SECONDS.toMillis(config.hasPath("table_refresh") ? config.getInt("table_refresh") : DEFAULT_TABLE_REFRESH);
+			this.tables = new CassandraTables(tableRefresh, config.hasPath("table_limit") ? config.getInt("table_limit") : DEFAULT_TABLE_LIMIT,
+					config.hasPath("table_rank_batch") ? config.getInt("table_rank_batch") : DEFAULT_TABLE_RANK_BATCH);
+		}
+
+		if (config.hasPath("transport") && "attach".equals(config.getString("transport"))) {
+			this.localNode = AttachTarget.byMainClass(config.hasPath("main_class") ? config.getString("main_class") : DEFAULT_MAIN_CLASS);
+			attachLocalNode(discoveryHosts);
+		}
+
+		// several instances can split the ring between them, one of them reports the ring-wide metrics
+		if (config.hasPath("shard_count")) {
+			int shardIndex = config.getInt("shard_index");
+			this.shard = RingShard.of(shardIndex, config.getInt("shard_count"));
+			this.mergeShards = config.hasPath("merge_shards") ? mergesShards(config, Hostname.hostname(config)) : shardIndex == 0;
+		} else if (config.hasPath("shard_mode") && "local".equals(config.getString("shard_mode"))) {
+			// every instance runs next to its own node, so none of them can be the default merger or share the default spool
+			if (!config.hasPath("merge_shards") || !config.hasPath("spool_dir"))
+				throw new ConfigException.BadValue(config.origin(), "shard_mode",
+						"local mode needs merge_shards (the host name of the instance reporting the ring-wide metrics) and a spool_dir shared by all instances");
+			String hostname = Hostname.hostname(config);
+			this.shard = RingShard.localOnly(hostname);
+			this.mergeShards = mergesShards(config, hostname);
+		}
+		if (shard != null) {
+			File spoolDir = new File(config.hasPath("spool_dir") ? config.getString("spool_dir") : System.getProperty("java.io.tmpdir") + "/newrelic-cassandra-shards");
+			long maxAge = TimeUnit.SECONDS.toMillis(config.hasPath("spool_max_age") ? config.getInt("spool_max_age") : DEFAULT_SPOOL_MAX_AGE);
+			this.spool = new ShardSpool(spoolDir, name, maxAge);
+			LOGGER.info("polling " + shard + " of ring " + name + (mergeShards ? ", merging the aggregates of the other shards from " : ", spooling aggregates to ") + spoolDir);
+		}
+
+		this.parallelism = config.hasPath("parallelism") ? config.getInt("parallelism") : DEFAULT_PARALLELISM;
+		this.hostTimeoutNanos = TimeUnit.SECONDS.toNanos(config.hasPath("host_timeout") ? config.getInt("host_timeout") : DEFAULT_HOST_TIMEOUT);
+	}
+
+	/**
+	 * {@code merge_shards} is either a boolean, or the host name of the one
+	 * instance that merges, so every instance can share the same config.
+	 */
+	private static boolean mergesShards(Config config, String hostname) {
+		try {
+			return config.getBoolean("merge_shards");
+		} catch (ConfigException.WrongType e) {
+			return hostname.equalsIgnoreCase(config.getString("merge_shards"));
+		}
 	}
 
 	@Override
@@ -44,171 +209,92 @@ public class CassandraRing extends Agent {
 
 	@Override
 	public void pollCycle() {
-               LOGGER.debug("starting poll cycle");
-               List<Metric> allMetrics = new ArrayList<Metric>();
+		LOGGER.debug("starting poll cycle");
+		Sample ring = new Sample();
+		List<Metric> allMetrics = ring.metrics;
+		boolean reportGlobal = true;
+		List<AggregatedMetric> aggregates = new ArrayList<AggregatedMetric>();
 		try {
-		        String discoHost = config.getString("discovery_host");
-                        LOGGER.debug("getting ring hosts from discovery_host " + discoHost);
-			List<String> ringHosts = CassandraHelper.getRingHosts(discoHost, config.getString("jmx_port"), jmxUsername, jmxPassword);
-
-			// TODO: figure out why C* returns an empty list after a few minutes
-			if (ringHosts.size() < 1) {
-			    ringHosts.add(discoHost);
-			    LOGGER.warn("cassandra JMX returned an empty list of nodes.  using discovery host as a fallback");
-			}
+			RingTopology topology = topologyCache.get();
+			List<String> ringHosts = shard != null ? shard.select(topology.getLiveHosts()) : topology.getLiveHosts();
+			previousReads.keySet().retainAll(ringHosts);
+			previousWrites.keySet().retainAll(ringHosts);
+			counters.retain(ringHosts);
+			if (tables != null)
+				tables.retain(ringHosts);
+			if (localNode != null)
+				attachLocalNode(ringHosts);
 
 			LOGGER.info("getting metrics for hosts [" + ringHosts + "]...");
 
-			allMetrics.add(new Metric("Cassandra/global/totalHosts", "count", ringHosts.size()));
-			int downCount = 0;
-
-			for (final String host : ringHosts) {
-				LOGGER.info("getting metrics for host [" + host + "]...");
+			// one sample per datacenter besides the ring-wide one
+			Map<String, Sample> datacenters = new TreeMap<String, Sample>();
+			List<String> downHosts = new ArrayList<String>(shard != null ? shard.select(topology.getUnreachableHosts()) : topology.getUnreachableHosts());
+			downHosts.addAll(pollHosts(ringHosts, topology, ring, datacenters));
+
+			Map<String, ShardSpool.Partial> partials = new TreeMap<String, ShardSpool.Partial>();
+			ShardSpool.Partial partial = ring.partial(ringHosts.size(), downHosts.size());
+			partials.put(RING, partial);
+			for (String host : downHosts) {
+				allMetrics.add(new Metric("Cassandra/downtime/hosts/" + host, "value", 1));
+				sampleOf(datacenters, datacenterOf(topology, host)).down++;
+			}
+			for (Map.Entry<String, Sample> e : datacenters.entrySet()) {
+				partials.put(e.getKey(), e.getValue().partial(e.getValue().hosts, e.getValue().down));
+			}
 
+			if (spool != null && !mergeShards) {
+				// the instance merging the shards reports the ring-wide metrics
 				try {
-				    List<Metric> metrics = JMXHelper.run(host, config.getString("jmx_port"), jmxUsername, jmxPassword,
-									 new JMXTemplate<List<Metric>>() {
-						@Override
-						public List<Metric> execute(MBeanServerConnection connection) throws Exception {
-
-							ArrayList<Metric> metrics = new ArrayList<Metric>();
-
-							// Latency
-							Double rl = JMXHelper.queryAndGetAttribute(connection, "org.apache.cassandra.metrics", "Latency", "ClientRequest", "Read", "Mean");
-							TimeUnit rlUnit = TimeUnit.valueOf(((String)JMXHelper.queryAndGetAttribute(connection, "org.apache.cassandra.metrics", "Latency", "ClientRequest", "Read", "DurationUnit")).toUpperCase());
-							rl = toMillis(rl, rlUnit);
-
-							Double wl = JMXHelper.queryAndGetAttribute(connection, "org.apache.cassandra.metrics", "Latency", "ClientRequest", "Write", "Mean");
-							TimeUnit wlUnit = TimeUnit.valueOf(((String)JMXHelper.queryAndGetAttribute(connection, "org.apache.cassandra.metrics", "Latency", "ClientRequest", "Write", "DurationUnit")).toUpperCase());
-							wl = toMillis(wl, wlUnit);
-
-							metrics.add(new Metric("Cassandra/hosts/" + host + "/Latency/Reads", "millis", rl));
-							metrics.add(new Metric("Cassandra/hosts/" + host + "/Latency/Writes", "millis", wl));
-							metrics.add(new Metric("Cassandra/global/Latency/Reads", "millis", rl));
-							metrics.add(new Metric("Cassandra/global/Latency/Writes", "millis", wl));
-
-							// System
-							Integer cpt = JMXHelper.queryAndGetAttribute(connection,
-									JMXHelper.getObjectNameByKeys("org.apache.cassandra.metrics", "type=Compaction", "name=PendingTasks"), "Value");
-							Long mpt = JMXHelper.queryAndGetAttribute(connection,
-												  JMXHelper.getObjectNameByKeys("org.apache.cassandra.metrics",
-																"type=ThreadPools",
-																"path=internal",
-																"scope=MemtablePostFlush",
-																"name=PendingTasks"), "Value");
-
-							metrics.add(new Metric("Cassandra/hosts/" + host + "/Compaction/PendingTasks", "count", cpt));
-							metrics.add(new Metric("Cassandra/hosts/" + host + "/MemtableFlush/PendingTasks", "count", mpt));
-
-							// Storage
-							Long load = JMXHelper.queryAndGetAttribute(connection,
-												     JMXHelper.getObjectNameByKeys("org.apache.cassandra.metrics",
-																   "type=Storage",
-																   "name=Load"), "Count");
-							metrics.add(new Metric("Cassandra/hosts/" + host + "/Storage/Data", "bytes", load));
-							metrics.add(new Metric("Cassandra/global/Storage/Data", "bytes", load));
-
-							Long commitLog = JMXHelper.queryAndGetAttribute(connection,
-													JMXHelper.getObjectNameByKeys("org.apache.cassandra.metrics",
-																      "type=CommitLog",
-																      "name=TotalCommitLogSize"), "Value");
-							metrics.add(new Metric("Cassandra/hosts/" + host + "/Storage/CommitLog", "bytes", commitLog));
-							metrics.add(new Metric("Cassandra/global/Storage/CommitLog", "bytes", commitLog));
-
-							// Cache
-							Double kchr = JMXHelper.queryAndGetAttribute(connection,
-									JMXHelper.getObjectNameByKeys("org.apache.cassandra.metrics", "type=Cache", "scope=KeyCache", "name=HitRate"),
-									"Value");
-							Long kcs = JMXHelper.queryAndGetAttribute(connection,
-									JMXHelper.getObjectNameByKeys("org.apache.cassandra.metrics", "type=Cache", "scope=KeyCache", "name=Size"),
-									"Value");
-							Integer kce = JMXHelper.queryAndGetAttribute(connection,
-									JMXHelper.getObjectNameByKeys("org.apache.cassandra.metrics", "type=Cache", "scope=KeyCache", "name=Entries"),
-									"Value");
-							metrics.add(new Metric("Cassandra/hosts/" + host + "/Cache/KeyCache/HitRate", "rate", kchr));
-							metrics.add(new Metric("Cassandra/hosts/" + host + "/Cache/KeyCache/Size", "bytes", kcs));
-							metrics.add(new Metric("Cassandra/hosts/" + host + "/Cache/KeyCache/Entries", "count", kce));
-							metrics.add(new Metric("Cassandra/global/Cache/KeyCache/HitRate", "rate", kchr));
-							metrics.add(new Metric("Cassandra/global/Cache/KeyCache/Size", "bytes", kcs));
-							metrics.add(new Metric("Cassandra/global/Cache/KeyCache/Entries", "count", kce));
-
-							Double rchr = JMXHelper.queryAndGetAttribute(connection,
-									JMXHelper.getObjectNameByKeys("org.apache.cassandra.metrics", "type=Cache", "scope=RowCache", "name=HitRate"),
-									"Value");
-							Long rcs = JMXHelper.queryAndGetAttribute(connection,
-									JMXHelper.getObjectNameByKeys("org.apache.cassandra.metrics", "type=Cache", "scope=RowCache", "name=Size"),
-									"Value");
-							Integer rce = JMXHelper.queryAndGetAttribute(connection,
-									JMXHelper.getObjectNameByKeys("org.apache.cassandra.metrics", "type=Cache", "scope=RowCache", "name=Entries"),
-									"Value");
-							metrics.add(new Metric("Cassandra/hosts/" + host + "/Cache/RowCache/HitRate", "rate", rchr));
-							metrics.add(new Metric("Cassandra/hosts/" + host + "/Cache/RowCache/Size", "bytes", rcs));
-							metrics.add(new Metric("Cassandra/hosts/" + host + "/Cache/RowCache/Entries", "count", rce));
-							metrics.add(new Metric("Cassandra/global/Cache/RowCache/HitRate", "rate", rchr));
-							metrics.add(new Metric("Cassandra/global/Cache/RowCache/Size", "bytes", rcs));
-							metrics.add(new Metric("Cassandra/global/Cache/RowCache/Entries", "count", rce));
-
-							// dropped mutations and dropped hints
-							Long droppedMutations = JMXHelper.queryAndGetAttribute(connection,
-									JMXHelper.getObjectNameByKeys("org.apache.cassandra.metrics", "type=DroppedMessage", "scope=MUTATION", "name=Dropped"),
-									"Count");
-							Long droppedHints = JMXHelper.queryAndGetAttribute(connection,
-									JMXHelper.getObjectNameByKeys("org.apache.cassandra.metrics", "type=DroppedMessage", "scope=HINT", "name=Dropped"),
-									"Count");
-							metrics.add(new Metric("Cassandra/hosts/" + host + "/DroppedMessage/Mutation", "count", droppedMutations));
-							metrics.add(new Metric("Cassandra/hosts/" + host + "/DroppedMessage/Hint", "count", droppedHints));
-							metrics.add(new Metric("Cassandra/global/DroppedMessage/Mutation", "count", droppedMutations));
-							metrics.add(new Metric("Cassandra/global/DroppedMessage/Hint", "count", droppedHints));
-
-							return metrics;
-						}
-
-						private Double toMillis(Double sourceValue, TimeUnit sourceUnit) {
-							switch (sourceUnit) {
-							case DAYS:
-								return sourceValue * 86400000;
-							case MICROSECONDS:
-								return sourceValue * 0.001;
-							case HOURS:
-								return sourceValue * 3600000;
-							case MILLISECONDS:
-								return sourceValue;
-							case MINUTES:
-								return sourceValue * 60000;
-							case NANOSECONDS:
-								return sourceValue * 1.0e-6;
-							case SECONDS:
-								return sourceValue * 1000;
-							default:
-								return sourceValue;
-							}
-						}
-					});
-
-					if (metrics != null)
-						allMetrics.addAll(metrics);
-				} catch (ConnectionException e) {
-					allMetrics.add(new Metric("Cassandra/downtime/hosts/" + e.getHost(), "value", 1));
-					downCount++;
-					allMetrics.add(new Metric("Cassandra/downtime/global", "count", downCount));
-					e.printStackTrace();
-				} catch (Exception e) {
-					LOGGER.error(e);
+					spool.write(shard.getId(), partials);
+				} catch (IOException e) {
+					LOGGER.warn("can't write the aggregates of " + shard + ": " + e.getMessage());
+				}
+				reportGlobal = false;
+			} else if (spool != null) {
+				int shards = 1 + spool.mergeOthers(shard.getId(), partials, GLOBAL);
+				allMetrics.add(new Metric("Cassandra/global/shards", "count", shards));
+			}
+
+			if (reportGlobal) {
+				allMetrics.add(new Metric("Cassandra/global/totalHosts", "count", topology.size()));
+				addPercentiles(allMetrics, "Cassandra/global/Latency/Reads", partial.reads);
+				addPercentiles(allMetrics, "Cassandra/global/Latency/Writes", partial.writes);
+				allMetrics.add(new Metric("Cassandra/downtime/global", "count", partial.down));
+				allMetrics.add(new Metric("Cassandra/downtime/timeouts", "count", partial.timeouts));
+				aggregates.addAll(partial.global.results());
+
+				Map<String, Integer> sizes = datacenterSizes(topology);
+				for (Map.Entry<String, ShardSpool.Partial> e : partials.entrySet()) {
+					// hosts the snitch didn't place are only part of the ring-wide metrics
+					if (RING.equals(e.getKey()) || UNKNOWN_DC.equals(e.getKey()))
+						continue;
+					String prefix = "Cassandra/dc/" + e.getKey() + "/";
+					ShardSpool.Partial dc = e.getValue();
+					allMetrics.add(new Metric(prefix + "totalHosts", "count", sizes.get(e.getKey())));
+					addPercentiles(allMetrics, prefix + "Latency/Reads", dc.reads);
+					addPercentiles(allMetrics, prefix + "Latency/Writes", dc.writes);
+					allMetrics.add(new Metric(prefix + "downtime", "count", dc.down));
+					allMetrics.add(new Metric(prefix + "timeouts", "count", dc.timeouts));
+					for (AggregatedMetric m : dc.global.results()) {
+						aggregates.add(new AggregatedMetric(prefix + m.name.substring(GLOBAL_PREFIX.length()), m.valueType, m.count, m.value, m.min, m.max,
+								m.sumOfSquares));
+					}
 				}
 			}
 
 		} catch (ConnectionException e) {
-			allMetrics.add(new Metric("Cassandra/downtime/hosts/" + e.getHost(), "value", 1));
-			// TODO: change to correct value (qty of failed connections) when we
-			// make discoveryHosts a list.
-			allMetrics.add(new Metric("Cassandra/downtime/global", "count", 1));
+			// no discovery host answered and there is no previous topology to fall back to
+			List<String> failed = topologyCache.getFailedHosts();
+			for (String host : failed) {
+				allMetrics.add(new Metric("Cassandra/downtime/hosts/" + host, "value", 1));
+			}
+			allMetrics.add(new Metric("Cassandra/downtime/global", "count", failed.size()));
 			LOGGER.error(e);
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
 
-		// fall-back to discovery host if none of the nodes
-
 		LOGGER.debug("pushing " + allMetrics.size() + " metrics...");
 		int dropped = 0;
 		for (Metric m : allMetrics) {
@@ -219,7 +305,309 @@ public class CassandraRing extends Agent {
 			dropped++;
 		    }
 		}
+		for (AggregatedMetric m : aggregates) {
+			reportMetric(m.name, m.valueType, m.count, m.value, m.min, m.max, m.sumOfSquares);
+		}
 		LOGGER.debug("pushing metrics: done! dropped (null/NaN) metrics: " + dropped);
 
 	}
+
+	/**
+	 * Polls every host on the worker pool of its datacenter, at most that
+	 * datacenter's {@code parallelism} at a time. Each host gets its
+	 * datacenter's {@code host_timeout} from the moment its poll starts; hosts
+	 * that fail to connect or run past their deadline are returned as down.
+	 * Results are merged into {@code ring} and into the sample of the host's
+	 * datacenter on the calling thread only.
+	 */
+	private List<String> pollHosts(List<String> hosts, RingTopology topology, final Sample ring, final Map<String, Sample> datacenters)
+			throws InterruptedException {
+		final List<String> downHosts = new ArrayList<String>();
+		List<HostPoll> polls = new ArrayList<HostPoll>();
+		for (String host : hosts) {
+			String dc = datacenterOf(topology, host);
+			sampleOf(datacenters, dc).hosts++;
+			if (!busyHosts.add(host)) {
+				// a host is sampled from one thread at a time
+				LOGGER.warn("host [" + host + "] is still busy with a previous poll, reporting it as down");
+				downHosts.add(host);
+				ring.timeouts++;
+				sampleOf(datacenters, dc).timeouts++;
+				continue;
+			}
+			polls.add(new HostPoll(host, dc, poolFor(dc)));
+		}
+
+		BoundedFanOut.run(polls, new BoundedFanOut.Listener<HostPoll, Sample>() {
+			@Override
+			public void completed(HostPoll poll, Sample sample) {
+				if (sample != null) {
+					ring.merge(sample);
+					sampleOf(datacenters, poll.dc).mergeAggregates(sample);
+				}
+			}
+
+			@Override
+			public void failed(HostPoll poll, Throwable cause) {
+				if (cause instanceof ConnectionException) {
+					downHosts.add(poll.host);
+					if (cause instanceof ConnectionTimeoutException) {
+						ring.timeouts++;
+						sampleOf(datacenters, poll.dc).timeouts++;
+					}
+					LOGGER.debug(cause, "host [" + poll.host + "] is down");
+				} else {
+					LOGGER.error(cause);
+				}
+			}
+
+			@Override
+			public void timedOut(HostPoll poll) {
+				LOGGER.warn("host [" + poll.host + "] did not answer within its deadline, reporting it as down");
+				downHosts.add(poll.host);
+				ring.timeouts++;
+				sampleOf(datacenters, poll.dc).timeouts++;
+			}
+		});
+
+		return downHosts;
+	}
+
+	private class HostPoll extends BoundedFanOut.Task<Sample> {
+		private final String host;
+		private final String dc;
+
+		HostPoll(String host, String dc, BoundedFanOut.Pool pool) {
+			super(pool);
+			this.host = host;
+			this.dc = dc;
+		}
+
+		@Override
+		protected Sample run() throws Exception {
+			LOGGER.info("getting metrics for host [" + host + "]...");
+			return JMXHelper.run(host, config.getString("jmx_port"), jmxUsername, jmxPassword, hostTemplate(host));
+		}
+
+		@Override
+		protected void finish() {
+			busyHosts.remove(host);
+		}
+	}
+
+	/**
+	 * The workers and the per-host timeout of one datacenter. They default to
+	 * {@code parallelism} and {@code host_timeout}, and can be set per
+	 * datacenter under {@code datacenters.<dc>}.
+	 */
+	private synchronized BoundedFanOut.Pool poolFor(String dc) {
+		BoundedFanOut.Pool pool = pools.get(dc);
+		if (pool == null) {
+			String path = ConfigUtil.joinPath("datacenters", dc);
+			Config dcConfig = config.hasPath(path) ? config.getConfig(path) : null;
+			int dcParallelism = dcConfig != null && dcConfig.hasPath("parallelism") ? dcConfig.getInt("parallelism") : parallelism;
+			long dcTimeout = dcConfig != null && dcConfig.hasPath("host_timeout") ? TimeUnit.SECONDS.toNanos(dcConfig.getInt("host_timeout")) : hostTimeoutNanos;
+			pool = new BoundedFanOut.Pool("cassandra-" + name + "-" + dc, dcParallelism, dcTimeout);
+			pools.put(dc, pool);
+		}
+		return pool;
+	}
+
+	private static String datacenterOf(RingTopology topology, String host) {
+		String dc = topology.getDatacenter(host);
+		return dc != null ? dc : UNKNOWN_DC;
+	}
+
+	private static Map<String, Integer> datacenterSizes(RingTopology topology) {
+		Map<String, Integer> sizes = new HashMap<String, Integer>();
+		List<String> all = new ArrayList<String>(topology.getLiveHosts());
+		all.addAll(topology.getUnreachableHosts());
+		for (String host : all) {
+			String dc = datacenterOf(topology, host);
+			sizes.put(dc, sizes.containsKey(dc) ? sizes.get(dc) + 1 : 1);
+		}
+		return sizes;
+	}
+
+	private static Sample sampleOf(Map<String, Sample> datacenters, String dc) {
+		Sample sample = datacenters.get(dc);
+		if (sample == null) {
+			sample = new Sample();
+			datacenters.put(dc, sample);
+		}
+		return sample;
+	}
+
+	/**
+	 * What one host contributed to a poll cycle: its own metrics plus its
+	 * samples of the ring-wide ones. Host samples are merged into one for the
+	 * whole ring, and into one per datacenter.
+	 */
+	private static class Sample {
+		final List<Metric> metrics = new ArrayList<Metric>();
+		final MetricAggregator.Accumulator global = GLOBAL.newAccumulator();
+		final LatencyHistogram reads = new LatencyHistogram();
+		final LatencyHistogram writes = new LatencyHistogram();
+		int hosts;
+		int down;
+		int timeouts;
+
+		void merge(Sample other) {
+			metrics.addAll(other.metrics);
+			mergeAggregates(other);
+		}
+
+		void mergeAggregates(Sample other) {
+			timeouts += other.timeouts;
+			global.merge(other.global);
+			reads.merge(other.reads);
+			writes.merge(other.writes);
+		}
+
+		ShardSpool.Partial partial(int hosts, int down) {
+			return new ShardSpool.Partial(hosts, down, timeouts, global, reads, writes);
+		}
+
+		void add(String name, String valueType, Number value) {
+			metrics.add(new Metric(name, valueType, value));
+		}
+
+		void global(int id, Number value) {
+			global.add(id, value);
+		}
+
+		void global(int id, Number value, Number weight) {
+			global.add(id, value, weight);
+		}
+	}
+
+	/**
+	 * Reaches the node running on this machine, if any, through the Attach
+	 * API instead of RMI.
+	 */
+	private void attachLocalNode(List<String> hosts) {
+		for (String host : hosts) {
+			try {
+				if (JMXHelper.isLocalIP(InetAddress.getByName(host)))
+					JMXConnectionPool.getInstance().setLocalTarget(host, config.getString("jmx_port"), localNode);
+			} catch (IOException e) {
+				LOGGER.debug("can't resolve " + host + ": " + e.getMessage());
+			}
+		}
+	}
+
+	private JMXTemplate<Sample> hostTemplate(final String host) {
+		return new JMXTemplate<Sample>() {
+			@Override
+			public Sample execute(MBeanServerConnection connection) throws Exception {
+
+				Sample sample = new Sample();
+				Object[] v = JMXHelper.getAttributes(connection, HOST_PLAN);
+				CounterRates.Interval interval = counters.sample(host);
+
+				// Latency
+				Double rl = CassandraHelper.toMillis(v[READ_LATENCY], v[READ_LATENCY_UNIT]);
+				Double wl = CassandraHelper.toMillis(v[WRITE_LATENCY], v[WRITE_LATENCY_UNIT]);
+
+				sample.add("Cassandra/hosts/" + host + "/Latency/Reads", "millis", rl);
+				sample.add("Cassandra/hosts/" + host + "/Latency/Writes", "millis", wl);
+				sample.global(GLOBAL_READ_LATENCY, rl, CassandraHelper.number(v[READ_COUNT]));
+				sample.global(GLOBAL_WRITE_LATENCY, wl, CassandraHelper.number(v[WRITE_COUNT]));
+
+				// Throughput
+				Double readRate = interval.rate(COUNTER_READS, CassandraHelper.number(v[READ_COUNT]));
+				Double writeRate = interval.rate(COUNTER_WRITES, CassandraHelper.number(v[WRITE_COUNT]));
+				sample.add("Cassandra/hosts/" + host + "/Requests/Reads", "ops/sec", readRate);
+				sample.add("Cassandra/hosts/" + host + "/Requests/Writes", "ops/sec", writeRate);
+				sample.global(GLOBAL_READ_RATE, readRate);
+				sample.global(GLOBAL_WRITE_RATE, writeRate);
+
+				// Latency distribution over the last interval
+				sample.reads.merge(interval(previousReads, host, v[READ_RECENT_BUCKETS], v[READ_BUCKETS]));
+				sample.writes.merge(interval(previousWrites, host, v[WRITE_RECENT_BUCKETS], v[WRITE_BUCKETS]));
+				addPercentiles(sample.metrics, "Cassandra/hosts/" + host + "/Latency/Reads", sample.reads);
+				addPercentiles(sample.metrics, "Cassandra/hosts/" + host + "/Latency/Writes", sample.writes);
+
+				// System
+				sample.add("Cassandra/hosts/" + host + "/Compaction/PendingTasks", "count", CassandraHelper.number(v[COMPACTION_PENDING]));
+				sample.add("Cassandra/hosts/" + host + "/MemtableFlush/PendingTasks", "count", CassandraHelper.number(v[MEMTABLE_FLUSH_PENDING]));
+
+				// Storage
+				Number load = CassandraHelper.number(v[STORAGE_LOAD]);
+				sample.add("Cassandra/hosts/" + host + "/Storage/Data", "bytes", load);
+				sample.global(GLOBAL_STORAGE_DATA, load);
+
+				Number commitLog = CassandraHelper.number(v[COMMIT_LOG_SIZE]);
+				sample.add("Cassandra/hosts/" + host + "/Storage/CommitLog", "bytes", commitLog);
+				sample.global(GLOBAL_STORAGE_COMMIT_LOG, commitLog);
+
+				// Cache
+				Number kchr = CassandraHelper.number(v[KEY_CACHE_HIT_RATE]);
+				Number kcs = CassandraHelper.number(v[KEY_CACHE_SIZE]);
+				Number kce = CassandraHelper.number(v[KEY_CACHE_ENTRIES]);
+				sample.add("Cassandra/hosts/" + host + "/Cache/KeyCache/HitRate", "rate", kchr);
+				sample.add("Cassandra/hosts/" + host + "/Cache/KeyCache/Size", "bytes", kcs);
+				sample.add("Cassandra/hosts/" + host + "/Cache/KeyCache/Entries", "count", kce);
+				sample.global(GLOBAL_KEY_CACHE_HIT_RATE, kchr, CassandraHelper.number(v[KEY_CACHE_REQUESTS]));
+				sample.global(GLOBAL_KEY_CACHE_SIZE, kcs);
+				sample.global(GLOBAL_KEY_CACHE_ENTRIES, kce);
+
+				Number rchr = CassandraHelper.number(v[ROW_CACHE_HIT_RATE]);
+				Number rcs = CassandraHelper.number(v[ROW_CACHE_SIZE]);
+				Number rce = CassandraHelper.number(v[ROW_CACHE_ENTRIES]);
+				sample.add("Cassandra/hosts/" + host + "/Cache/RowCache/HitRate", "rate", rchr);
+				sample.add("Cassandra/hosts/" + host + "/Cache/RowCache/Size", "bytes", rcs);
+				sample.add("Cassandra/hosts/" + host + "/Cache/RowCache/Entries", "count", rce);
+				sample.global(GLOBAL_ROW_CACHE_HIT_RATE, rchr, CassandraHelper.number(v[ROW_CACHE_REQUESTS]));
+				sample.global(GLOBAL_ROW_CACHE_SIZE, rcs);
+				sample.global(GLOBAL_ROW_CACHE_ENTRIES, rce);
+
+				// dropped mutations and dropped hints during the last interval
+				Long droppedMutations = interval.delta(COUNTER_DROPPED_MUTATIONS, CassandraHelper.number(v[DROPPED_MUTATIONS]));
+				Long droppedHints = interval.delta(COUNTER_DROPPED_HINTS, CassandraHelper.number(v[DROPPED_HINTS]));
+				sample.add("Cassandra/hosts/" + host + "/DroppedMessage/Mutation", "count", droppedMutations);
+				sample.add("Cassandra/hosts/" + host + "/DroppedMessage/Hint", "count", droppedHints);
+				sample.global(GLOBAL_DROPPED_MUTATIONS, droppedMutations);
+				sample.global(GLOBAL_DROPPED_HINTS, droppedHints);
+
+				// Tables
+				if (tables != null) {
+					try {
+						tables.collect(host, connection, sample.metrics);
+					} catch (IOException e) {
+						throw e;
+					} catch (Exception e) {
+						LOGGER.warn(e, "unable to collect table metrics for host [" + host + "]");
+					}
+				}
+
+				return sample;
+			}
+		};
+	}
+
+	/**
+	 * The latency histogram of the last interval. {@code RecentValues} already
+	 * is one, except on its first read, which holds everything since the node
+	 * started (or since another client last read it). Without it, the
+	 * cumulative {@code Values} of the previous poll are subtracted.
+	 */
+	private static LatencyHistogram interval(Map<String, long[]> previous, String host, Object recent, Object buckets) {
+		if (recent instanceof long[])
+			return previous.put(host, RECENT) == RECENT ? new LatencyHistogram((long[]) recent) : null;
+		if (!(buckets instanceof long[])) {
+			previous.remove(host);
+			return null;
+		}
+		long[] current = (long[]) buckets;
+		return LatencyHistogram.delta(previous.put(host, current), current);
+	}
+
+	private void addPercentiles(List<Metric> metrics, String prefix, LatencyHistogram histogram) {
+		metrics.add(new Metric(prefix + "/p50", "millis", CassandraHelper.toMillis(histogram.percentile(0.5), histogramUnit)));
+		metrics.add(new Metric(prefix + "/p95", "millis", CassandraHelper.toMillis(histogram.percentile(0.95), histogramUnit)));
+		metrics.add(new Metric(prefix + "/p99", "millis", CassandraHelper.toMillis(histogram.percentile(0.99), histogramUnit)));
+		metrics.add(new Metric(prefix + "/p999", "millis", CassandraHelper.toMillis(histogram.percentile(0.999), histogramUnit)));
+		metrics.add(new Metric(prefix + "/Max", "millis", CassandraHelper.toMillis(histogram.max(), histogramUnit)));
+	}
 }
@@ -2,13 +2,18 @@ package ar.com.threelegs.newrelic;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
-import javax.management.MBeanServerConnection;
 import javax.management.ObjectName;
 
+import ar.com.threelegs.newrelic.jmx.AttachTarget;
+import ar.com.threelegs.newrelic.jmx.AttributePath;
 import ar.com.threelegs.newrelic.jmx.ConnectionException;
-import ar.com.threelegs.newrelic.jmx.JMXHelper;
-import ar.com.threelegs.newrelic.jmx.JMXTemplate;
+import ar.com.threelegs.newrelic.jmx.ConnectionTimeoutException;
+import ar.com.threelegs.newrelic.jmx.GCPauseMonitor;
+import ar.com.threelegs.newrelic.jmx.JMXConnectionPool;
+import ar.com.threelegs.newrelic.jmx.JMXEndpointCollector;
+import ar.com.threelegs.newrelic.util.AtomicHistogram;
 
 import com.newrelic.metrics.publish.Agent;
 import com.newrelic.metrics.publish.util.Logger;
@@ -18,7 +23,9 @@ import com.typesafe.config.ConfigException;
 public class JMXRemote extends Agent {
 	private static final Logger LOGGER = Logger.getLogger(JMXRemote.class);
 	private String name, host, port, metricPrefix, username, password;
-	private List<? extends Config> JMXList;
+	private List<Query> queries = new ArrayList<Query>();
+	private JMXEndpointCollector.Client client;
+	private GCPauseMonitor gcPauses;
 	
 	public JMXRemote(Config config) {
 		this(config, Defaults.JMXREMOTE_PLUGIN_NAME, Defaults.VERSION);
@@ -28,11 +35,32 @@ public class JMXRemote extends Agent {
 		super(pluginName, pluginVersion);
 		this.name = config.getString("name");
 		this.host = config.getString("host");
-		this.port = config.getString("port");
+		if (config.hasPath("transport") && "attach".equals(config.getString("transport"))) {
+			// a local JVM, the port only names it
+			AttachTarget target = config.hasPath("pid") ? AttachTarget.byPid(config.getString("pid")) : AttachTarget.byMainClass(config.getString("main_class"));
+			this.port = config.hasPath("port") ? config.getString("port") : config.hasPath("pid") ? config.getString("pid") : config.getString("main_class");
+			JMXConnectionPool.getInstance().setLocalTarget(host, port, target);
+		} else {
+			this.port = config.getString("port");
+		}
 		this.username = config.getString("username");
 		this.password = config.getString("password");
-		this.JMXList = config.getConfigList("metrics");
+		for (Config thisMetric : config.getConfigList("metrics")) {
+			try {
+				queries.add(new Query(thisMetric));
+			} catch (Exception e) {
+				LOGGER.error(e, "invalid metric definition: " + thisMetric.root().render());
+			}
+		}
 		this.metricPrefix = "JMX/hosts/" + host +":" + port;
+
+		// instances pointing at the same JVM share one connection and one read per cycle
+		this.client = JMXEndpointCollector.forEndpoint(host, port, username, password).newClient();
+		for (Query thisQuery : queries) {
+			client.add(thisQuery.objectName, thisQuery.paths);
+		}
+		if (config.hasPath("gc_notifications") && config.getBoolean("gc_notifications"))
+			this.gcPauses = new GCPauseMonitor(host, port, username, password);
 	}
 
 	@Override
@@ -47,32 +75,22 @@ public class JMXRemote extends Agent {
 		try {
 			LOGGER.debug("Connecting to host [" + this.host + ":" + this.port + "]...");
 				try {
-				    List<Metric> metrics = JMXHelper.run(this.host, this.port, this.username, this.password, new JMXTemplate<List<Metric>>() {
-						@Override
-						public List<Metric> execute(MBeanServerConnection connection) throws Exception {
-							List<? extends Config> myList = JMXList;
-							ArrayList<Metric> metrics = new ArrayList<Metric>();
-							for (Config thisMetric : myList) {
-								ObjectName thisObjectName = ObjectName.getInstance(thisMetric.getString("objectname"));
-								String thisMetricType;
-								try { thisMetricType = thisMetric.getString("type"); } catch (ConfigException e) { thisMetricType = "value"; }
-								try { 
-									// Using <Metric> with different assignments for the 2 strings in it.
-									List<Metric> resultValues = JMXHelper.queryAndGetAttributes(connection, thisObjectName, thisMetric.getStringList("attributes"));
-									for (Metric thisValue : resultValues) {
-										String metricName = metricPrefix + "/" + thisValue.name.replaceAll(":", "/").replaceAll(",", "/") + "/" + thisValue.valueType;
-										// Adding actual metric in proper form to metric list.
-										metrics.add(new Metric(metricName, thisMetricType, thisValue.value));
-									}
-								} catch (Exception e) {
-									LOGGER.error(e, "failed object: " + thisMetric.getString("objectname"));
-								}
-							}
-							return metrics;
+					List<List<Metric>> results = client.collect();
+					for (int i = 0; i < queries.size(); i++) {
+						Query thisQuery = queries.get(i);
+						// Using <Metric> with different assignments for the 2 strings in it.
+						for (Metric thisValue : results.get(i)) {
+							String metricName = metricPrefix + "/" + thisValue.name.replaceAll(":", "/").replaceAll(",", "/") + "/" + thisValue.valueType;
+							// Adding actual metric in proper form to metric list.
+							allMetrics.add(new Metric(metricName, thisQuery.type, thisValue.value));
 						}
-					});
-					if (metrics != null)
-						allMetrics.addAll(metrics);
+					}
+					if (gcPauses != null)
+						collectGCPauses(allMetrics);
+				} catch (ConnectionTimeoutException e) {
+					allMetrics.add(new Metric(metricPrefix + "/" + "status", "value", 3));
+					allMetrics.add(new Metric(metricPrefix + "/" + "timeouts", "count", 1));
+					LOGGER.warn(e.getMessage());
 				} catch (ConnectionException e) {
 					allMetrics.add(new Metric(metricPrefix + "/" + "status", "value", 3));
 					e.printStackTrace();
@@ -96,4 +114,35 @@ public class JMXRemote extends Agent {
 			LOGGER.debug("pushing metrics: done! dropped metrics: " + dropped);
 		}
 	}
+
+	private void collectGCPauses(List<Metric> allMetrics) throws ConnectionException {
+		gcPauses.subscribe();
+		for (Map.Entry<String, AtomicHistogram.Interval> e : gcPauses.drain().entrySet()) {
+			String prefix = metricPrefix + "/GC/" + e.getKey() + "/";
+			AtomicHistogram.Interval pauses = e.getValue();
+			allMetrics.add(new Metric(prefix + "Pauses", "pauses", pauses.count));
+			if (pauses.count > 0) {
+				allMetrics.add(new Metric(prefix + "Pause/Max", "millis", pauses.max));
+				allMetrics.add(new Metric(prefix + "Pause/99th", "millis", pauses.percentile(0.99)));
+			}
+		}
+	}
+
+	/**
+	 * One entry of {@code metrics}, compiled once: the ObjectName (or pattern)
+	 * and the attribute paths to read from it.
+	 */
+	private static class Query {
+		final ObjectName objectName;
+		final List<AttributePath> paths;
+		final String type;
+
+		Query(Config config) throws Exception {
+			this.objectName = ObjectName.getInstance(config.getString("objectname"));
+			this.paths = AttributePath.compile(config.getStringList("attributes"));
+			String thisMetricType;
+			try { thisMetricType = config.getString("type"); } catch (ConfigException e) { thisMetricType = "value"; }
+			this.type = thisMetricType;
+		}
+	}
 }
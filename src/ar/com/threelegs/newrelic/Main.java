@@ -2,6 +2,9 @@ package ar.com.threelegs.newrelic;
 
 import java.io.File;
 
+import ar.com.threelegs.newrelic.jmx.CircuitBreaker;
+import ar.com.threelegs.newrelic.jmx.JMXConnectionPool;
+
 import com.newrelic.metrics.publish.Runner;
 import com.newrelic.metrics.publish.configuration.ConfigurationException;
 import com.newrelic.metrics.publish.util.Logger;
@@ -16,6 +19,19 @@ public class Main {
 
 		Config config = ConfigFactory.parseFile(new File(com.newrelic.metrics.publish.configuration.Config.getConfigDirectory() + File.separator
 				+ "plugin.json"));
+
+		if (config.hasPath("jmx")) {
+			Config jmx = config.getConfig("jmx");
+			JMXConnectionPool pool = JMXConnectionPool.getInstance();
+			int connectTimeout = jmx.hasPath("connect_timeout") ? jmx.getInt("connect_timeout") * 1000 : JMXConnectionPool.DEFAULT_CONNECT_TIMEOUT;
+			int requestTimeout = jmx.hasPath("request_timeout") ? jmx.getInt("request_timeout") * 1000 : JMXConnectionPool.DEFAULT_REQUEST_TIMEOUT;
+			pool.setTimeouts(connectTimeout, requestTimeout);
+
+			int failureThreshold = jmx.hasPath("failure_threshold") ? jmx.getInt("failure_threshold") : CircuitBreaker.DEFAULT_FAILURE_THRESHOLD;
+			long maxBackoff = jmx.hasPath("max_backoff") ? jmx.getInt("max_backoff") * 1000L : CircuitBreaker.DEFAULT_MAX_BACKOFF;
+			pool.getCircuitBreaker().configure(failureThreshold, CircuitBreaker.DEFAULT_BASE_BACKOFF, maxBackoff);
+		}
+
 		for (Config c : config.getConfigList("agents")) {
 			String type = c.getString("type");
 
@@ -59,6 +75,13 @@ public class Main {
 			}
 		}
 
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				JMXConnectionPool.getInstance().closeAll();
+			}
+		});
+
 		try {
 			runner.setupAndRun();
 		} catch (ConfigurationException e) {
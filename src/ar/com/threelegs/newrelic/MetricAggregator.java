@@ -0,0 +1,189 @@
+package ar.com.threelegs.newrelic;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Folds the per-host samples of a set of declared metrics into one value per
+ * metric, so that each ring-wide metric is reported once per cycle with its
+ * min, max and sample count instead of once per host.
+ * <p>
+ * Results are laid out the way New Relic reads a metric: one sample per host,
+ * with {@code value} the total of the samples, and the min, max and sum of
+ * squares of the per-host values. For a {@link Kind#SUM} metric the total is
+ * the ring-wide sum, and the average New Relic derives from it the per-host
+ * average. For {@link Kind#WEIGHTED_MEAN} the total is scaled so that the
+ * average is the weighted mean.
+ * <p>
+ * Metrics are declared once and identified by the id returned from
+ * {@link #declare}. Each poll cycle gets its own {@link Accumulator}.
+ */
+public class MetricAggregator {
+
+	public enum Kind {
+		/** the sum over all hosts, e.g. total bytes on disk */
+		SUM,
+		/** the plain average over all hosts */
+		MEAN,
+		/** the average over all hosts, weighted by e.g. each host's request count */
+		WEIGHTED_MEAN
+	}
+
+	private final List<String> names = new ArrayList<String>();
+	private final List<String> units = new ArrayList<String>();
+	private final List<Kind> kinds = new ArrayList<Kind>();
+
+	public int declare(String name, String unit, Kind kind) {
+		names.add(name);
+		units.add(unit);
+		kinds.add(kind);
+		return names.size() - 1;
+	}
+
+	public int size() {
+		return names.size();
+	}
+
+	public Accumulator newAccumulator() {
+		return new Accumulator();
+	}
+
+	public class Accumulator {
+		private final int[] count = new int[names.size()];
+		private final double[] sum = new double[names.size()];
+		private final double[] weightedSum = new double[names.size()];
+		private final double[] weights = new double[names.size()];
+		private final double[] min = new double[names.size()];
+		private final double[] max = new double[names.size()];
+		private final double[] sumOfSquares = new double[names.size()];
+
+		Accumulator() {
+			Arrays.fill(min, Double.POSITIVE_INFINITY);
+			Arrays.fill(max, Double.NEGATIVE_INFINITY);
+		}
+
+		public void add(int id, Number value) {
+			add(id, value, null);
+		}
+
+		/**
+		 * Adds one host's sample. Null and NaN samples are ignored; a missing
+		 * weight counts as 1.
+		 */
+		public void add(int id, Number value, Number weight) {
+			if (value == null)
+				return;
+			double v = value.doubleValue();
+			if (Double.isNaN(v) || Double.isInfinite(v))
+				return;
+			double w = weight != null && !Double.isNaN(weight.doubleValue()) ? weight.doubleValue() : 1;
+
+			count[id]++;
+			sum[id] += v;
+			weightedSum[id] += v * w;
+			weights[id] += w;
+			sumOfSquares[id] += v * v;
+			if (v < min[id])
+				min[id] = v;
+			if (v > max[id])
+				max[id] = v;
+		}
+
+		/**
+		 * Merges another accumulator for the same aggregator into this one.
+		 */
+		public void merge(Accumulator other) {
+			for (int id = 0; id < count.length; id++) {
+				if (other.count[id] == 0)
+					continue;
+				count[id] += other.count[id];
+				sum[id] += other.sum[id];
+				weightedSum[id] += other.weightedSum[id];
+				weights[id] += other.weights[id];
+				sumOfSquares[id] += other.sumOfSquares[id];
+				min[id] = Math.min(min[id], other.min[id]);
+				max[id] = Math.max(max[id], other.max[id]);
+			}
+		}
+
+		/**
+		 * Writes the state of this accumulator, so that another process can
+		 * {@link #read} it into its own.
+		 */
+		public void write(DataOutput out) throws IOException {
+			out.writeInt(count.length);
+			for (int id = 0; id < count.length; id++) {
+				out.writeUTF(names.get(id));
+				out.writeInt(count[id]);
+				out.writeDouble(sum[id]);
+				out.writeDouble(weightedSum[id]);
+				out.writeDouble(weights[id]);
+				out.writeDouble(sumOfSquares[id]);
+				out.writeDouble(min[id]);
+				out.writeDouble(max[id]);
+			}
+		}
+
+		/**
+		 * Merges an accumulator written by {@link #write} into this one.
+		 * Metrics are matched by name; the ones this aggregator doesn't declare
+		 * are skipped.
+		 */
+		public void read(DataInput in) throws IOException {
+			Accumulator other = new Accumulator();
+			int size = in.readInt();
+			for (int i = 0; i < size; i++) {
+				int id = names.indexOf(in.readUTF());
+				int c = in.readInt();
+				double[] v = new double[6];
+				for (int j = 0; j < v.length; j++) {
+					v[j] = in.readDouble();
+				}
+				if (id == -1)
+					continue;
+				other.count[id] = c;
+				other.sum[id] = v[0];
+				other.weightedSum[id] = v[1];
+				other.weights[id] = v[2];
+				other.sumOfSquares[id] = v[3];
+				other.min[id] = v[4];
+				other.max[id] = v[5];
+			}
+			merge(other);
+		}
+
+		public List<AggregatedMetric> results() {
+			return results("");
+		}
+
+		/**
+		 * Returns one metric per declared name that received at least one
+		 * sample, with {@code prefix} prepended to its name.
+		 */
+		public List<AggregatedMetric> results(String prefix) {
+			List<AggregatedMetric> results = new ArrayList<AggregatedMetric>();
+			for (int id = 0; id < count.length; id++) {
+				if (count[id] == 0)
+					continue;
+
+				String name = prefix + names.get(id);
+				switch (kinds.get(id)) {
+				case SUM:
+				case MEAN:
+					results.add(new AggregatedMetric(name, units.get(id), count[id], sum[id], min[id], max[id], sumOfSquares[id]));
+					break;
+				case WEIGHTED_MEAN:
+					// the weighted mean is the total divided by the count
+					double mean = weights[id] > 0 ? weightedSum[id] / weights[id] : sum[id] / count[id];
+					results.add(new AggregatedMetric(name, units.get(id), count[id], mean * count[id], min[id], max[id], sumOfSquares[id]));
+					break;
+				}
+			}
+			return results;
+		}
+	}
+}
@@ -1,36 +1,39 @@
 package ar.com.threelegs.newrelic;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.InputStreamReader;
-import java.text.NumberFormat;
-import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
+import ar.com.threelegs.newrelic.MetricAggregator.Kind;
+import ar.com.threelegs.newrelic.util.BoundedFanOut;
+import ar.com.threelegs.newrelic.util.CounterRates;
+import ar.com.threelegs.newrelic.varnish.StatInstance;
 
 import com.newrelic.metrics.publish.Agent;
-import com.newrelic.metrics.publish.processors.EpochCounter;
 import com.newrelic.metrics.publish.util.Logger;
 import com.typesafe.config.Config;
 
 public class Varnish extends Agent {
 
 	private static final Logger LOGGER = Logger.getLogger(Varnish.class);
+	private static final int DEFAULT_PARALLELISM = 8;
+	private static final int DEFAULT_HOST_TIMEOUT = 20;
+
+	// fleet-wide aggregates over all the instances of the agent
+	private static final MetricAggregator FLEET = new MetricAggregator();
+	private static final int FLEET_CACHE_HIT = FLEET.declare("Varnish/fleet/cache/hits", "requests/sec", Kind.SUM);
+	private static final int FLEET_CACHE_MISS = FLEET.declare("Varnish/fleet/cache/misses", "requests/sec", Kind.SUM);
+	private static final int FLEET_HIT_RATE = FLEET.declare("Varnish/fleet/cache/HitRate", "rate", Kind.WEIGHTED_MEAN);
+	private static final int FLEET_BACKEND_FAIL = FLEET.declare("Varnish/fleet/backend/failures", "connections/sec", Kind.SUM);
+
 	private String name;
 	private Config config;
-	private Map<Pattern, String> units = new HashMap<Pattern, String>();
-	private Map<Pattern, String> groups = new HashMap<Pattern, String>();
+	private List<StatInstance> instances = new ArrayList<StatInstance>();
+	private boolean fleet;
+	private BoundedFanOut.Pool pool;
+	private CounterRates counters = new CounterRates(StatInstance.COUNTERS);
 
 	public Varnish(Config config) {
 		this(config, Defaults.VARNISH_PLUGIN_NAME, Defaults.VERSION);
@@ -41,14 +44,29 @@ public class Varnish extends Agent {
 		this.name = config.getString("name");
 		this.config = config;
 
-		units.put(Pattern.compile("client_.*"), "connections");
-		units.put(Pattern.compile("backend_.*"), "connections");
-		units.put(Pattern.compile("cache_.*"), "requests");
-		units.put(Pattern.compile("fetch_.*"), "fetchs");
-		units.put(Pattern.compile("n_wrk.*"), "threads");
-		units.put(Pattern.compile("n_object"), "objects");
+		if (!config.hasPath("instances")) {
+			instances.add(StatInstance.fromConfig(config, name, "Varnish/"));
+			return;
+		}
 
-		groups.put(Pattern.compile("n_wrk.*"), "threads");
+		// several instances, each one reported under its own host, plus the fleet-wide aggregates
+		this.fleet = true;
+		Config defaults = config.withoutPath("instances").withoutPath("name");
+		Set<String> labels = new HashSet<String>();
+		for (Config i : config.getConfigList("instances")) {
+			String label = i.hasPath("name") ? i.getString("name") : (i.hasPath("host") ? i.getString("host") : Hostname.hostname(config))
+					+ (i.hasPath("instance") ? "-" + i.getString("instance") : "");
+			String unique = label;
+			for (int n = 2; !labels.add(unique); n++) {
+				unique = label + "-" + n;
+			}
+			instances.add(StatInstance.fromConfig(i.withFallback(defaults), unique, "Varnish/hosts/" + unique + "/"));
+		}
+
+		int parallelism = Math.max(1, Math.min(instances.size(), config.hasPath("parallelism") ? config.getInt("parallelism") : DEFAULT_PARALLELISM));
+		long hostTimeoutNanos = TimeUnit.SECONDS.toNanos(config.hasPath("host_timeout") ? config.getInt("host_timeout") : DEFAULT_HOST_TIMEOUT);
+		this.pool = new BoundedFanOut.Pool("varnish-" + name, parallelism, hostTimeoutNanos);
+		LOGGER.info("polling " + instances.size() + " varnish instances for " + name + ", " + parallelism + " at a time");
 	}
 
 	@Override
@@ -59,120 +77,117 @@ public class Varnish extends Agent {
 	@Override
 	public void pollCycle() {
 		List<Metric> allMetrics = new ArrayList<Metric>();
+		List<AggregatedMetric> aggregates = new ArrayList<AggregatedMetric>();
+		StatInstance.Snapshot single = new StatInstance.Snapshot();
 		try {
-			String command = "";
-
-			if (config.hasPath("user")) {
-				command += "ssh -t " + config.getString("user") + "@" + config.getString("host");
-			}
-			
-			if (config.hasPath("port")) {
-				command += " -p " + config.getString("port");
-			}
-
-			command += " varnishstat -1 -x";
-
-			if (config.hasPath("instance")) {
-				command += " -n " + config.getString("instance");
-			}
-
-			Process p = Runtime.getRuntime().exec(command);
-
-			BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()));
-			StringBuilder builder = new StringBuilder();
-			String aux = "";
-
-			while ((aux = in.readLine()) != null) {
-				builder.append(aux);
-			}
-
-			DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-			DocumentBuilder db = dbf.newDocumentBuilder();
-			Document dom = db.parse(new InputSource(new ByteArrayInputStream(builder.toString().replace("\t", "").getBytes("utf-8"))));
-
-			NodeList nlist = dom.getElementsByTagName("stat");
-
-			for (int i = 0; i < nlist.getLength(); i++) {
-				allMetrics.add(getMetric((Element) nlist.item(i)));
-			}
-
-			p.waitFor();
-
+			if (fleet)
+				pollFleet(allMetrics, aggregates);
+			else
+				instances.get(0).read(single);
 		} catch (Exception e) {
 			LOGGER.error(e);
 		} finally {
+			allMetrics.addAll(single.metrics);
 			LOGGER.debug("pushing " + allMetrics.size() + " metrics...");
 			for (Metric m : allMetrics) {
 				LOGGER.debug(m.name + "[" + m.valueType + "] --> " + m.value);
 				reportMetric(m.name, m.valueType, m.value);
 			}
+			for (AggregatedMetric m : aggregates) {
+				reportMetric(m.name, m.valueType, m.count, m.value, m.min, m.max, m.sumOfSquares);
+			}
 			LOGGER.debug("done!");
 		}
 	}
 
-	private Map<String, EpochCounter> epochCounters = new HashMap<String, EpochCounter>();
-
-	private Metric getMetric(Element n) throws ParseException {
-		String type = n.getElementsByTagName("type").item(0) != null ? n.getElementsByTagName("type").item(0).getTextContent() : null;
-		String ident = n.getElementsByTagName("ident").item(0) != null ? n.getElementsByTagName("ident").item(0).getTextContent() : null;
-		String name = n.getElementsByTagName("name").item(0) != null ? n.getElementsByTagName("name").item(0).getTextContent() : null;
-		String description = n.getElementsByTagName("description").item(0) != null ? n.getElementsByTagName("description").item(0).getTextContent()
-				: null;
-		String value = n.getElementsByTagName("value").item(0) != null ? n.getElementsByTagName("value").item(0).getTextContent() : null;
-		String flag = n.getElementsByTagName("flag").item(0) != null ? n.getElementsByTagName("flag").item(0).getTextContent() : null;
-
-		StringBuilder key = new StringBuilder();
-		key.append("Varnish/");
-
-		// does it have a custom group?
-		String group = getGroup(name);
-
-		if (group != null) {
-			key.append(group + "/");
-		} else if (type != null)
-			key.append(type + "/");
-		else {
-			key.append("main/");
-
-			int pos = name.indexOf("_");
-			if (pos != -1) {
-				key.append(name.substring(0, pos) + "/");
+	/**
+	 * Polls every instance on the worker pool, at most {@code parallelism} at
+	 * a time. Each instance gets {@code host_timeout} from the moment its poll
+	 * starts; instances that fail or run past their deadline are reported as
+	 * down, and their varnishstat is killed.
+	 */
+	private void pollFleet(final List<Metric> allMetrics, List<AggregatedMetric> aggregates) throws InterruptedException {
+		final MetricAggregator.Accumulator totals = FLEET.newAccumulator();
+		final List<String> downHosts = new ArrayList<String>();
+		final List<String> timedOut = new ArrayList<String>();
+
+		List<InstancePoll> polls = new ArrayList<InstancePoll>();
+		for (StatInstance instance : instances) {
+			if (!instance.tryAcquire()) {
+				// the poll of a previous cycle is still stuck
+				LOGGER.warn("varnish [" + instance + "] is still busy with a previous poll, reporting it as down");
+				downHosts.add(instance.getLabel());
+				timedOut.add(instance.getLabel());
+				continue;
 			}
+			polls.add(new InstancePoll(instance, pool));
 		}
 
-		if (ident != null)
-			key.append(ident + "/");
+		BoundedFanOut.run(polls, new BoundedFanOut.Listener<InstancePoll, StatInstance.Snapshot>() {
+			@Override
+			public void completed(InstancePoll poll, StatInstance.Snapshot snapshot) {
+				collect(poll.instance, snapshot, allMetrics, totals);
+			}
 
-		key.append(description);
+			@Override
+			public void failed(InstancePoll poll, Throwable cause) {
+				LOGGER.warn("can't read varnish [" + poll.instance + "]: " + cause);
+				downHosts.add(poll.instance.getLabel());
+			}
 
-		String actualKey = key.toString();
-		if ("a".equals(flag)) {
-			if (!epochCounters.containsKey(actualKey)) {
-				epochCounters.put(actualKey, new EpochCounter());
+			@Override
+			public void timedOut(InstancePoll poll) {
+				LOGGER.warn("varnish [" + poll.instance + "] did not answer within its deadline, reporting it as down");
+				downHosts.add(poll.instance.getLabel());
+				timedOut.add(poll.instance.getLabel());
 			}
-			return new Metric(actualKey, getUnitName(name) + "/sec", epochCounters.get(actualKey).process(NumberFormat.getInstance().parse(value)));
-		} else {
-			return new Metric(actualKey, getUnitName(name), NumberFormat.getInstance().parse(value));
+		});
+
+		for (String host : downHosts) {
+			allMetrics.add(new Metric("Varnish/downtime/hosts/" + host, "value", 1));
 		}
+		allMetrics.add(new Metric("Varnish/fleet/hosts", "count", instances.size()));
+		allMetrics.add(new Metric("Varnish/fleet/down", "count", downHosts.size()));
+		allMetrics.add(new Metric("Varnish/fleet/timeouts", "count", timedOut.size()));
+		aggregates.addAll(totals.results());
 	}
 
-	private String getUnitName(String metricName) {
-		for (Map.Entry<Pattern, String> e : units.entrySet()) {
-			if (e.getKey().matcher(metricName).matches()) {
-				return e.getValue();
-			}
+	private void collect(StatInstance instance, StatInstance.Snapshot snapshot, List<Metric> allMetrics, MetricAggregator.Accumulator totals) {
+		allMetrics.addAll(snapshot.metrics);
+
+		CounterRates.Interval interval = counters.sample(instance.getLabel());
+		Double hits = interval.rate(StatInstance.CACHE_HIT, snapshot.counter(StatInstance.CACHE_HIT));
+		Double misses = interval.rate(StatInstance.CACHE_MISS, snapshot.counter(StatInstance.CACHE_MISS));
+		totals.add(FLEET_CACHE_HIT, hits);
+		totals.add(FLEET_CACHE_MISS, misses);
+		totals.add(FLEET_BACKEND_FAIL, interval.rate(StatInstance.BACKEND_FAIL, snapshot.counter(StatInstance.BACKEND_FAIL)));
+		// weighted by lookups, the mean hit rate is the fleet's hits over its lookups
+		if (hits != null && misses != null && hits + misses > 0)
+			totals.add(FLEET_HIT_RATE, hits / (hits + misses), hits + misses);
+	}
+
+	private static class InstancePoll extends BoundedFanOut.Task<StatInstance.Snapshot> {
+		private final StatInstance instance;
+
+		InstancePoll(StatInstance instance, BoundedFanOut.Pool pool) {
+			super(pool);
+			this.instance = instance;
 		}
 
-		return "value";
-	}
+		@Override
+		protected StatInstance.Snapshot run() throws Exception {
+			LOGGER.debug("getting metrics for varnish [" + instance + "]...");
+			return instance.poll();
+		}
 
-	private String getGroup(String metricName) {
-		for (Map.Entry<Pattern, String> e : groups.entrySet()) {
-			if (e.getKey().matcher(metricName).matches()) {
-				return e.getValue();
-			}
+		@Override
+		protected void finish() {
+			instance.release();
 		}
 
-		return null;
+		@Override
+		protected void abandon() {
+			instance.cancel();
+		}
 	}
 }
@@ -0,0 +1,134 @@
+package ar.com.threelegs.newrelic.jmx;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+import javax.management.remote.JMXServiceURL;
+
+import com.newrelic.metrics.publish.util.Logger;
+
+/**
+ * A JVM on this machine, found by PID or by a pattern on its main class (and
+ * arguments), and reached through its local connector address instead of an
+ * RMI registry. The target doesn't need remote JMX to be enabled: if its
+ * management agent isn't running yet, it is started through the Attach API.
+ * <p>
+ * The Attach API is used through reflection, so the plugin still builds and
+ * runs where it isn't available (on a JRE without tools.jar, connecting fails
+ * with a {@link ConnectionException} instead).
+ */
+public class AttachTarget {
+
+	private static final Logger LOGGER = Logger.getLogger(AttachTarget.class);
+	private static final String LOCAL_CONNECTOR_ADDRESS = "com.sun.management.jmxremote.localConnectorAddress";
+
+	private final String pid;
+	private final Pattern mainClass;
+
+	private AttachTarget(String pid, Pattern mainClass) {
+		this.pid = pid;
+		this.mainClass = mainClass;
+	}
+
+	public static AttachTarget byPid(String pid) {
+		return new AttachTarget(pid, null);
+	}
+
+	/**
+	 * Targets the first JVM whose main class and arguments match
+	 * {@code pattern} (a regular expression, matched anywhere).
+	 */
+	public static AttachTarget byMainClass(String pattern) {
+		return new AttachTarget(null, Pattern.compile(pattern));
+	}
+
+	/**
+	 * Finds the target JVM and returns its local connector address. It is
+	 * looked up again on every call, since the PID changes when the target
+	 * restarts.
+	 */
+	public JMXServiceURL connectorAddress() throws IOException {
+		try {
+			Class<?> vmClass = attachClass("com.sun.tools.attach.VirtualMachine");
+			Class<?> descriptorClass = attachClass("com.sun.tools.attach.VirtualMachineDescriptor");
+
+			String id = pid;
+			if (id == null) {
+				Method displayName = descriptorClass.getMethod("displayName");
+				Method descriptorId = descriptorClass.getMethod("id");
+				for (Object descriptor : (List<?>) vmClass.getMethod("list").invoke(null)) {
+					if (mainClass.matcher((String) displayName.invoke(descriptor)).find()) {
+						id = (String) descriptorId.invoke(descriptor);
+						break;
+					}
+				}
+				if (id == null)
+					throw new IOException("no local JVM matches " + mainClass.pattern());
+			}
+
+			Object vm = vmClass.getMethod("attach", String.class).invoke(null, id);
+			try {
+				String address = ((Properties) vmClass.getMethod("getAgentProperties").invoke(vm)).getProperty(LOCAL_CONNECTOR_ADDRESS);
+				if (address == null) {
+					LOGGER.info("starting the local management agent of JVM " + id);
+					address = (String) vmClass.getMethod("startLocalManagementAgent").invoke(vm);
+				}
+				LOGGER.debug("local connector address of JVM " + id + ": " + address);
+				return new JMXServiceURL(address);
+			} finally {
+				vmClass.getMethod("detach").invoke(vm);
+			}
+		} catch (InvocationTargetException e) {
+			throw new IOException("could not attach to " + this + ": " + e.getCause(), e.getCause());
+		} catch (ReflectiveOperationException e) {
+			throw new IOException("the Attach API is not available: " + e, e);
+		}
+	}
+
+	/**
+	 * Loads a class of the Attach API, from tools.jar if it isn't on the
+	 * classpath (Java 8 only ships it with the JDK).
+	 */
+	private static Class<?> attachClass(String name) throws ReflectiveOperationException, IOException {
+		try {
+			return Class.forName(name);
+		} catch (ClassNotFoundException e) {
+			File tools = new File(System.getProperty("java.home"), "../lib/tools.jar");
+			if (!tools.isFile())
+				throw e;
+			return Class.forName(name, true, ToolsLoader.get(tools));
+		}
+	}
+
+	private static class ToolsLoader {
+		private static ClassLoader loader;
+
+		static synchronized ClassLoader get(File tools) throws IOException {
+			if (loader == null)
+				loader = new URLClassLoader(new URL[] { tools.toURI().toURL() }, AttachTarget.class.getClassLoader());
+			return loader;
+		}
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof AttachTarget && toString().equals(o.toString());
+	}
+
+	@Override
+	public int hashCode() {
+		return toString().hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return pid != null ? "JVM " + pid : "JVM matching " + mainClass.pattern();
+	}
+}
@@ -0,0 +1,164 @@
+package ar.com.threelegs.newrelic.jmx;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+/**
+ * A compiled attribute path such as {@code HeapMemoryUsage.used} or
+ * {@code LastGcInfo.memoryUsageAfterGc[G1 Old Gen].used}.
+ * <p>
+ * The first segment is the MBean attribute. Every {@code .key} after it reads
+ * an item of a {@link CompositeData}, and every {@code [index]} looks up a
+ * row of a {@link TabularData} by its (single) index value. Rows of map-like
+ * tables, which only hold a {@code key} and a {@code value}, are unwrapped to
+ * their value.
+ */
+public class AttributePath {
+
+	private final String path;
+	private final String attribute;
+	private final String[] steps;
+	private final boolean[] lookups;
+
+	private AttributePath(String path, String attribute, String[] steps, boolean[] lookups) {
+		this.path = path;
+		this.attribute = attribute;
+		this.steps = steps;
+		this.lookups = lookups;
+	}
+
+	public static AttributePath compile(String path) {
+		List<String> steps = new ArrayList<String>();
+		List<Boolean> lookups = new ArrayList<Boolean>();
+		StringBuilder current = new StringBuilder();
+		String attribute = null;
+
+		for (int i = 0; i < path.length(); i++) {
+			char c = path.charAt(i);
+			if (c == '.' || c == '[') {
+				if (current.length() > 0) {
+					if (attribute == null)
+						attribute = current.toString();
+					else {
+						steps.add(current.toString());
+						lookups.add(false);
+					}
+					current.setLength(0);
+				}
+				if (c == '[') {
+					int end = path.indexOf(']', i);
+					if (end == -1 || attribute == null)
+						throw new IllegalArgumentException("invalid attribute path: " + path);
+					steps.add(path.substring(i + 1, end));
+					lookups.add(true);
+					i = end;
+				}
+			} else {
+				current.append(c);
+			}
+		}
+		if (current.length() > 0) {
+			if (attribute == null)
+				attribute = current.toString();
+			else {
+				steps.add(current.toString());
+				lookups.add(false);
+			}
+		}
+		if (attribute == null)
+			throw new IllegalArgumentException("invalid attribute path: " + path);
+
+		boolean[] l = new boolean[lookups.size()];
+		for (int i = 0; i < l.length; i++) {
+			l[i] = lookups.get(i);
+		}
+		return new AttributePath(path, attribute, steps.toArray(new String[steps.size()]), l);
+	}
+
+	public static List<AttributePath> compile(List<String> paths) {
+		List<AttributePath> compiled = new ArrayList<AttributePath>(paths.size());
+		for (String p : paths) {
+			compiled.add(compile(p));
+		}
+		return compiled;
+	}
+
+	/**
+	 * The MBean attribute this path starts from.
+	 */
+	public String getAttribute() {
+		return attribute;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public boolean isNested() {
+		return steps.length > 0;
+	}
+
+	/**
+	 * The path as a metric name segment: dots and brackets, which mean
+	 * something else to New Relic, become slashes.
+	 */
+	public String getMetricName() {
+		if (!isNested())
+			return attribute;
+		StringBuilder name = new StringBuilder(attribute);
+		for (String step : steps) {
+			name.append('/').append(step);
+		}
+		return name.toString();
+	}
+
+	/**
+	 * True if an attribute declared with {@code type} can hold a value this
+	 * path can be resolved on.
+	 */
+	public boolean accepts(String type) {
+		if ("java.lang.Object".equals(type))
+			return true;
+		if (isNested())
+			return CompositeData.class.getName().equals(type) || TabularData.class.getName().equals(type);
+		return MBeanDiscoveryCache.isReportable(type);
+	}
+
+	/**
+	 * Walks the path from the attribute value, or returns {@code null} if a
+	 * step does not exist.
+	 */
+	public Object extract(Object value) {
+		for (int i = 0; i < steps.length && value != null; i++) {
+			if (lookups[i]) {
+				if (!(value instanceof TabularData))
+					return null;
+				TabularData table = (TabularData) value;
+				if (table.getTabularType().getIndexNames().size() != 1)
+					return null;
+				value = table.get(new Object[] { steps[i] });
+				value = unwrapRow((CompositeData) value);
+			} else {
+				if (!(value instanceof CompositeData))
+					return null;
+				CompositeData data = (CompositeData) value;
+				value = data.containsKey(steps[i]) ? data.get(steps[i]) : null;
+			}
+		}
+		return value;
+	}
+
+	private static Object unwrapRow(CompositeData row) {
+		if (row != null && row.getCompositeType().keySet().size() == 2 && row.containsKey("key") && row.containsKey("value"))
+			return row.get("value");
+		return row;
+	}
+
+	@Override
+	public String toString() {
+		return path;
+	}
+}
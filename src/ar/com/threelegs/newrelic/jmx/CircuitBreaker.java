@@ -0,0 +1,80 @@
+package ar.com.threelegs.newrelic.jmx;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.newrelic.metrics.publish.util.Logger;
+
+/**
+ * Per-endpoint circuit breaker for JMX connections. After
+ * {@code failureThreshold} consecutive failed connects the endpoint is not
+ * tried again until its backoff expires; the backoff doubles with every
+ * further failed probe, up to {@code maxBackoff}. A successful connect closes
+ * the circuit again.
+ */
+public class CircuitBreaker {
+
+	private static final Logger LOGGER = Logger.getLogger(CircuitBreaker.class);
+	public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+	public static final long DEFAULT_BASE_BACKOFF = TimeUnit.SECONDS.toMillis(30);
+	public static final long DEFAULT_MAX_BACKOFF = TimeUnit.MINUTES.toMillis(10);
+
+	private final ConcurrentMap<String, State> states = new ConcurrentHashMap<String, State>();
+	private volatile int failureThreshold;
+	private volatile long baseBackoff;
+	private volatile long maxBackoff;
+
+	public CircuitBreaker(int failureThreshold, long baseBackoff, long maxBackoff) {
+		this.failureThreshold = failureThreshold;
+		this.baseBackoff = baseBackoff;
+		this.maxBackoff = maxBackoff;
+	}
+
+	public void configure(int failureThreshold, long baseBackoff, long maxBackoff) {
+		this.failureThreshold = failureThreshold;
+		this.baseBackoff = baseBackoff;
+		this.maxBackoff = maxBackoff;
+	}
+
+	/**
+	 * True if a connect to {@code key} may be attempted now, either because
+	 * the circuit is closed or because it is time for a probe.
+	 */
+	public boolean allow(String key) {
+		State state = states.get(key);
+		return state == null || System.currentTimeMillis() >= state.retryAt;
+	}
+
+	public void success(String key) {
+		if (states.remove(key) != null)
+			LOGGER.info("JMX endpoint " + key + " is reachable again, closing circuit");
+	}
+
+	public void failure(String key) {
+		State state = states.get(key);
+		if (state == null) {
+			State newState = new State();
+			state = states.putIfAbsent(key, newState);
+			if (state == null)
+				state = newState;
+		}
+
+		synchronized (state) {
+			state.failures++;
+			if (state.failures >= failureThreshold) {
+				int exponent = Math.min(state.failures - failureThreshold, 30);
+				long backoff = Math.min(baseBackoff << exponent, maxBackoff);
+				if (backoff < 0)
+					backoff = maxBackoff;
+				state.retryAt = System.currentTimeMillis() + backoff;
+				LOGGER.info("JMX endpoint " + key + " failed " + state.failures + " times in a row, next attempt in " + backoff / 1000 + "s");
+			}
+		}
+	}
+
+	private static class State {
+		int failures;
+		volatile long retryAt;
+	}
+}
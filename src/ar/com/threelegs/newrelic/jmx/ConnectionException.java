@@ -6,7 +6,11 @@ public class ConnectionException extends Exception {
 	private String host;
 	
 	public ConnectionException(String host, Throwable cause) {
-		super("unable to connect to " + host, cause);
+		this(host, "unable to connect to " + host, cause);
+	}
+
+	protected ConnectionException(String host, String message, Throwable cause) {
+		super(message, cause);
 		this.host = host;
 	}
 
@@ -0,0 +1,14 @@
+package ar.com.threelegs.newrelic.jmx;
+
+/**
+ * Thrown when a JMX host accepted the connection but did not answer in time,
+ * either while connecting or during a call.
+ */
+public class ConnectionTimeoutException extends ConnectionException {
+
+	private static final long serialVersionUID = 6120933470711874082L;
+
+	public ConnectionTimeoutException(String host, Throwable cause) {
+		super(host, "timed out waiting for " + host, cause);
+	}
+}
@@ -0,0 +1,127 @@
+package ar.com.threelegs.newrelic.jmx;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationFilterSupport;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import ar.com.threelegs.newrelic.util.AtomicHistogram;
+
+import com.newrelic.metrics.publish.util.Logger;
+
+/**
+ * Records every GC pause of a remote JVM from the
+ * {@code com.sun.management.gc.notification} notifications its
+ * GarbageCollector MBeans send, instead of polling their counters.
+ * <p>
+ * The listeners live on the pooled connection to the JVM. Each call to
+ * {@link #subscribe()} checks that they are registered on the current
+ * connection, and registers them again after the pool reconnected.
+ * <p>
+ * Only stop-the-world pauses are recorded. Concurrent collectors (CMS, the
+ * concurrent cycles of G1, ZGC and Shenandoah) send a notification for each
+ * concurrent cycle too, timed from its start to its end while the application
+ * keeps running; those collectors are not listened to, and notifications whose
+ * action is not the end of a pause are skipped.
+ * <p>
+ * Pauses are recorded without locking into one histogram per collector, which
+ * {@link #drain()} hands over and resets once per reporting cycle.
+ */
+public class GCPauseMonitor implements NotificationListener {
+
+	private static final Logger LOGGER = Logger.getLogger(GCPauseMonitor.class);
+	public static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+	private static final int BUCKETS = 90;
+	private static final Set<String> PAUSE_ACTIONS = new HashSet<String>(Arrays.asList("end of minor GC", "end of major GC", "end of GC pause"));
+	private static final Set<String> CONCURRENT_COLLECTORS = new HashSet<String>(Arrays.asList("ConcurrentMarkSweep", "G1 Concurrent GC", "ZGC Cycles",
+			"ZGC Minor Cycles", "ZGC Major Cycles", "Shenandoah Cycles"));
+
+	private final String host, port, username, password;
+	private final ConcurrentMap<String, AtomicHistogram> recorders = new ConcurrentHashMap<String, AtomicHistogram>();
+	private MBeanServerConnection subscribedTo;
+
+	public GCPauseMonitor(String host, String port, String username, String password) {
+		this.host = host;
+		this.port = port;
+		this.username = username;
+		this.password = password;
+	}
+
+	/**
+	 * Makes sure the listeners are registered on the pooled connection,
+	 * registering them if the connection is new.
+	 */
+	public synchronized void subscribe() throws ConnectionException {
+		final MBeanServerConnection current = subscribedTo;
+		MBeanServerConnection connection = JMXHelper.run(host, port, username, password, new JMXTemplate<MBeanServerConnection>() {
+			@Override
+			public MBeanServerConnection execute(MBeanServerConnection connection) throws Exception {
+				if (connection == current)
+					return connection;
+
+				NotificationFilterSupport filter = new NotificationFilterSupport();
+				filter.enableType(GC_NOTIFICATION);
+				int collectors = 0;
+				for (ObjectName collector : connection.queryNames(new ObjectName("java.lang:type=GarbageCollector,*"), null)) {
+					if (CONCURRENT_COLLECTORS.contains(collector.getKeyProperty("name")))
+						continue;
+					connection.addNotificationListener(collector, GCPauseMonitor.this, filter, null);
+					collectors++;
+				}
+				LOGGER.info((current == null ? "listening" : "connection was reopened, listening again") + " for GC pauses of " + collectors
+						+ " collector(s) on " + host + ":" + port);
+				return connection;
+			}
+		});
+		subscribedTo = connection;
+	}
+
+	@Override
+	public void handleNotification(Notification notification, Object handback) {
+		if (!GC_NOTIFICATION.equals(notification.getType()) || !(notification.getUserData() instanceof CompositeData))
+			return;
+
+		// the fields of com.sun.management.GarbageCollectionNotificationInfo, read without depending on it
+		CompositeData info = (CompositeData) notification.getUserData();
+		CompositeData gcInfo = (CompositeData) info.get("gcInfo");
+		if (gcInfo == null)
+			return;
+		String gcName = (String) info.get("gcName");
+		if (!PAUSE_ACTIONS.contains(info.get("gcAction")) || CONCURRENT_COLLECTORS.contains(gcName))
+			return;
+		long duration = ((Number) gcInfo.get("duration")).longValue();
+		recorderFor(gcName).record(duration);
+	}
+
+	/**
+	 * The pauses recorded for each collector since the last call, in millis.
+	 */
+	public Map<String, AtomicHistogram.Interval> drain() {
+		Map<String, AtomicHistogram.Interval> drained = new LinkedHashMap<String, AtomicHistogram.Interval>();
+		for (Map.Entry<String, AtomicHistogram> e : recorders.entrySet()) {
+			drained.put(e.getKey(), e.getValue().drain());
+		}
+		return drained;
+	}
+
+	private AtomicHistogram recorderFor(String collector) {
+		AtomicHistogram recorder = recorders.get(collector);
+		if (recorder == null) {
+			AtomicHistogram newRecorder = new AtomicHistogram(BUCKETS);
+			recorder = recorders.putIfAbsent(collector, newRecorder);
+			if (recorder == null)
+				recorder = newRecorder;
+		}
+		return recorder;
+	}
+}
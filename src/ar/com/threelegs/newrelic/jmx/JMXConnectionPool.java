@@ -0,0 +1,368 @@
+package ar.com.threelegs.newrelic.jmx;
+
+import java.io.IOException;
+import java.rmi.server.RMISocketFactory;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+import com.newrelic.metrics.publish.util.Logger;
+
+/**
+ * Keeps one open JMX connection per host:port:user so that steady-state
+ * polling reuses the RMI connection instead of doing a JNDI lookup and a
+ * handshake on every cycle. Connections are dropped when the connector
+ * reports them as failed or closed, and evicted after being idle for a while.
+ */
+public class JMXConnectionPool {
+
+	private static final Logger LOGGER = Logger.getLogger(JMXConnectionPool.class);
+	public static final long DEFAULT_IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(5);
+	public static final int DEFAULT_CONNECT_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(10);
+	public static final int DEFAULT_REQUEST_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(30);
+	private static final JMXConnectionPool INSTANCE = new JMXConnectionPool(DEFAULT_IDLE_TIMEOUT);
+
+	private final ConcurrentMap<String, PooledConnection> connections = new ConcurrentHashMap<String, PooledConnection>();
+	private final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+	private final ConcurrentMap<String, AttachTarget> localTargets = new ConcurrentHashMap<String, AttachTarget>();
+	private volatile long idleTimeout;
+	private volatile long lastEviction = System.currentTimeMillis();
+	private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private volatile int requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+	private TimeoutSocketFactory socketFactory;
+	private final CircuitBreaker breaker = new CircuitBreaker(CircuitBreaker.DEFAULT_FAILURE_THRESHOLD, CircuitBreaker.DEFAULT_BASE_BACKOFF,
+			CircuitBreaker.DEFAULT_MAX_BACKOFF);
+
+	private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "jmx-call-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	public JMXConnectionPool(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	public static JMXConnectionPool getInstance() {
+		return INSTANCE;
+	}
+
+	public void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Sets the connect and per-call timeouts, in millis. RMI only allows one
+	 * socket factory per JVM, so this has to be called before the first
+	 * connection is opened.
+	 */
+	public synchronized void setTimeouts(int connectTimeout, int requestTimeout) {
+		if (socketFactory != null)
+			LOGGER.warn("JMX timeouts changed after the first connection, the RMI socket timeouts won't change");
+		this.connectTimeout = connectTimeout;
+		this.requestTimeout = requestTimeout;
+		if (socketFactory == null)
+			setRmiTimeouts();
+	}
+
+	/**
+	 * Reaches host:port through the Attach API instead of its RMI registry,
+	 * for JVMs running on this machine. Templates run against the connection
+	 * as usual, the host and port only identify the target.
+	 */
+	public void setLocalTarget(String host, String port, AttachTarget target) {
+		if (!target.equals(localTargets.put(host + ":" + port, target)))
+			LOGGER.info(host + ":" + port + " will be reached through the Attach API (" + target + ")");
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return breaker;
+	}
+
+	public MBeanServerConnection borrow(String host, String port, String username, String password) throws ConnectionException {
+		evictIdle();
+
+		String key = keyOf(host, port, username);
+		PooledConnection pooled = connections.get(key);
+		if (pooled != null && pooled.alive) {
+			pooled.lastUsed = System.currentTimeMillis();
+			return pooled.connection;
+		}
+
+		synchronized (lockFor(key)) {
+			pooled = connections.get(key);
+			if (pooled != null && pooled.alive) {
+				pooled.lastUsed = System.currentTimeMillis();
+				return pooled.connection;
+			}
+			if (pooled != null) {
+				LOGGER.info("JMX connection to " + key + " was lost, reconnecting");
+				connections.remove(key, pooled);
+				pooled.close();
+			}
+
+			if (!breaker.allow(key))
+				throw new ConnectionException(host, "circuit open for " + key + ", skipping connect", null);
+
+			try {
+				pooled = connect(key, host, port, username, password);
+			} catch (ConnectionException e) {
+				breaker.failure(key);
+				throw e;
+			}
+			breaker.success(key);
+			connections.put(key, pooled);
+			return pooled.connection;
+		}
+	}
+
+	/**
+	 * Runs {@code template} against a connection borrowed for
+	 * host:port:username, giving up after the request timeout. The socket
+	 * timeouts bound each RMI read, but not a call that keeps reconnecting or
+	 * a template making several calls; a call given up on invalidates the
+	 * connection, which closes its sockets and unblocks the abandoned thread.
+	 */
+	public <T> T execute(String host, String port, String username, final MBeanServerConnection connection, final JMXTemplate<T> template)
+			throws Exception {
+		Future<T> future = executor.submit(new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				return template.execute(connection);
+			}
+		});
+
+		try {
+			return future.get(requestTimeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException ex) {
+			future.cancel(true);
+			invalidate(host, port, username);
+			throw new ConnectionTimeoutException(host, ex);
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw (Exception) cause;
+		} catch (InterruptedException ex) {
+			future.cancel(true);
+			invalidate(host, port, username);
+			Thread.currentThread().interrupt();
+			throw new ConnectionException(host, ex);
+		}
+	}
+
+	/**
+	 * Drops the pooled connection. Closing it talks to the host, which may be
+	 * the one not answering, so it is closed on a pool thread.
+	 */
+	public void invalidate(String host, String port, String username) {
+		String key = keyOf(host, port, username);
+		final PooledConnection pooled = connections.remove(key);
+		if (pooled != null) {
+			LOGGER.debug("invalidating JMX connection to " + key);
+			pooled.alive = false;
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					pooled.close();
+				}
+			});
+		}
+	}
+
+	public void evictIdle() {
+		long now = System.currentTimeMillis();
+		if (now - lastEviction < idleTimeout / 4)
+			return;
+		lastEviction = now;
+
+		Iterator<Map.Entry<String, PooledConnection>> it = connections.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, PooledConnection> e = it.next();
+			PooledConnection pooled = e.getValue();
+			if (!pooled.alive || now - pooled.lastUsed > idleTimeout) {
+				LOGGER.debug("evicting idle JMX connection to " + e.getKey());
+				it.remove();
+				pooled.close();
+			}
+		}
+	}
+
+	public void closeAll() {
+		Iterator<PooledConnection> it = connections.values().iterator();
+		while (it.hasNext()) {
+			PooledConnection pooled = it.next();
+			it.remove();
+			pooled.close();
+		}
+	}
+
+	static String keyOf(String host, String port, String username) {
+		return host + ":" + port + ":" + (username != null ? username : "");
+	}
+
+	private Object lockFor(String key) {
+		Object lock = locks.get(key);
+		if (lock == null) {
+			Object newLock = new Object();
+			lock = locks.putIfAbsent(key, newLock);
+			if (lock == null)
+				lock = newLock;
+		}
+		return lock;
+	}
+
+	private PooledConnection connect(String key, final String host, String port, String username, String password) throws ConnectionException {
+		LOGGER.debug("opening JMX connection to " + key);
+		final JMXServiceURL address;
+		final Map<String, Object> env = new Hashtable<String, Object>();
+		AttachTarget local = localTargets.get(host + ":" + port);
+		try {
+			if (local != null)
+				address = local.connectorAddress();
+			else
+				address = new JMXServiceURL("service:jmx:rmi:///jndi/rmi://" + host + ":" + port + "/jmxrmi");
+		} catch (IOException ex) {
+			throw new ConnectionException(host, ex);
+		}
+		// the local connector doesn't authenticate
+		if (local == null && username != null && password != null) {
+			String[] s = { username, password };
+			env.put(JMXConnector.CREDENTIALS, s);
+		}
+		env.put("com.sun.jndi.rmi.factory.socket", socketFactory());
+
+		// connect on a separate thread so a stuck handshake can be abandoned
+		final AtomicBoolean abandoned = new AtomicBoolean(false);
+		Future<JMXConnector> future = executor.submit(new Callable<JMXConnector>() {
+			@Override
+			public JMXConnector call() throws Exception {
+				JMXConnector connector = JMXConnectorFactory.connect(address, env);
+				if (abandoned.get()) {
+					LOGGER.debug("closing JMX connection to " + host + " that completed after its timeout");
+					connector.close();
+				}
+				return connector;
+			}
+		});
+
+		try {
+			JMXConnector connector = future.get(connectTimeout, TimeUnit.MILLISECONDS);
+			PooledConnection pooled = new PooledConnection(key, connector, connector.getMBeanServerConnection());
+			connector.addConnectionNotificationListener(pooled, null, null);
+			return pooled;
+		} catch (TimeoutException ex) {
+			abandoned.set(true);
+			future.cancel(true);
+			throw new ConnectionTimeoutException(host, ex);
+		} catch (ExecutionException ex) {
+			if (JMXHelper.isTimeout(ex.getCause()))
+				throw new ConnectionTimeoutException(host, ex.getCause());
+			throw new ConnectionException(host, ex.getCause());
+		} catch (InterruptedException ex) {
+			abandoned.set(true);
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new ConnectionException(host, ex);
+		} catch (IOException ex) {
+			throw new ConnectionException(host, ex);
+		}
+	}
+
+	/**
+	 * Installs the timeout socket factory for RMI the first time it is needed;
+	 * it is used for the registry lookup and for the RMI calls themselves.
+	 */
+	private synchronized TimeoutSocketFactory socketFactory() {
+		if (socketFactory == null) {
+			setRmiTimeouts();
+			socketFactory = new TimeoutSocketFactory(connectTimeout, requestTimeout);
+			try {
+				RMISocketFactory.setSocketFactory(socketFactory);
+			} catch (IOException e) {
+				LOGGER.warn("an RMI socket factory is already installed, JMX calls will only be bounded by the RMI response timeout");
+			}
+		}
+		return socketFactory;
+	}
+
+	/**
+	 * RMI resets the read timeout of its sockets while it handshakes (60s by
+	 * default) and while it waits for a response, and reads both settings once
+	 * when its transport classes load, so they are set before the first
+	 * connection. Values given on the command line are kept.
+	 */
+	private void setRmiTimeouts() {
+		if (System.getProperty("sun.rmi.transport.tcp.handshakeTimeout") == null)
+			System.setProperty("sun.rmi.transport.tcp.handshakeTimeout", String.valueOf(connectTimeout));
+		if (System.getProperty("sun.rmi.transport.tcp.responseTimeout") == null)
+			System.setProperty("sun.rmi.transport.tcp.responseTimeout", String.valueOf(requestTimeout));
+	}
+
+	private static class PooledConnection implements NotificationListener {
+		private final String key;
+		private final JMXConnector connector;
+		private final MBeanServerConnection connection;
+		private volatile boolean alive = true;
+		private volatile long lastUsed = System.currentTimeMillis();
+
+		PooledConnection(String key, JMXConnector connector, MBeanServerConnection connection) {
+			this.key = key;
+			this.connector = connector;
+			this.connection = connection;
+		}
+
+		@Override
+		public void handleNotification(Notification notification, Object handback) {
+			String type = notification.getType();
+			if (JMXConnectionNotification.FAILED.equals(type) || JMXConnectionNotification.CLOSED.equals(type)) {
+				LOGGER.debug("JMX connection to " + key + " reported " + type);
+				alive = false;
+			} else if (JMXConnectionNotification.NOTIFS_LOST.equals(type)) {
+				LOGGER.debug("JMX connection to " + key + " lost notifications, dropping its MBean cache");
+				MBeanDiscoveryCache.invalidate(connection);
+			}
+		}
+
+		void close() {
+			boolean wasAlive = alive;
+			alive = false;
+			MBeanDiscoveryCache.release(connection, wasAlive);
+			try {
+				connector.removeConnectionNotificationListener(this);
+			} catch (Exception e) {
+				// already gone
+			}
+			try {
+				connector.close();
+			} catch (IOException e) {
+				LOGGER.debug("error closing JMX connection to " + key + ": " + e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package ar.com.threelegs.newrelic.jmx;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+
+import ar.com.threelegs.newrelic.Metric;
+
+import com.newrelic.metrics.publish.util.Logger;
+
+/**
+ * Collects the queries of every agent that points at the same JMX endpoint
+ * (host:port:user) and reads them together, once per cycle: each MBean is
+ * read with one getAttributes call for the union of the paths any agent
+ * wants from it, and the results are handed back to each agent.
+ * <p>
+ * The first agent to poll in a cycle takes a snapshot; the others reuse it,
+ * as long as they haven't seen it yet and it is not older than
+ * {@code maxAge}.
+ */
+public class JMXEndpointCollector {
+
+	private static final Logger LOGGER = Logger.getLogger(JMXEndpointCollector.class);
+	public static final long DEFAULT_MAX_AGE = TimeUnit.SECONDS.toMillis(30);
+	private static final Map<String, JMXEndpointCollector> COLLECTORS = new HashMap<String, JMXEndpointCollector>();
+
+	private final String host, port, username, password;
+	private final List<Client> clients = new ArrayList<Client>();
+	private final long maxAge;
+	private Snapshot snapshot;
+	private long snapshots = 0;
+
+	private JMXEndpointCollector(String host, String port, String username, String password, long maxAge) {
+		this.host = host;
+		this.port = port;
+		this.username = username;
+		this.password = password;
+		this.maxAge = maxAge;
+	}
+
+	public static JMXEndpointCollector forEndpoint(String host, String port, String username, String password) {
+		String key = JMXConnectionPool.keyOf(host, port, username);
+		synchronized (COLLECTORS) {
+			JMXEndpointCollector collector = COLLECTORS.get(key);
+			if (collector == null) {
+				collector = new JMXEndpointCollector(host, port, username, password, DEFAULT_MAX_AGE);
+				COLLECTORS.put(key, collector);
+			}
+			return collector;
+		}
+	}
+
+	public synchronized Client newClient() {
+		Client client = new Client();
+		clients.add(client);
+		return client;
+	}
+
+	private synchronized Snapshot snapshotFor(Client client) {
+		long now = System.currentTimeMillis();
+		if (snapshot == null || snapshot.id == client.lastSnapshot || now - snapshot.takenAt > maxAge)
+			snapshot = take();
+		client.lastSnapshot = snapshot.id;
+		return snapshot;
+	}
+
+	private Snapshot take() {
+		final Snapshot taken = new Snapshot(++snapshots);
+		try {
+			JMXHelper.run(host, port, username, password, new JMXTemplate<Void>() {
+				@Override
+				public Void execute(MBeanServerConnection connection) throws Exception {
+					MBeanDiscoveryCache cache = MBeanDiscoveryCache.forConnection(connection);
+
+					// every MBean any client wants, with the union of the paths wanted from it
+					Map<ObjectName, Map<String, AttributePath>> wanted = new LinkedHashMap<ObjectName, Map<String, AttributePath>>();
+					for (Client client : clients) {
+						for (int i = 0; i < client.patterns.size(); i++) {
+							ObjectName pattern = client.patterns.get(i);
+							Set<ObjectName> names = taken.expansions.get(pattern);
+							if (names == null) {
+								try {
+									names = cache.queryNames(pattern);
+								} catch (IOException e) {
+									throw e;
+								} catch (Exception e) {
+									LOGGER.error(e, "failed object: " + pattern);
+									continue;
+								}
+								taken.expansions.put(pattern, names);
+							}
+							for (ObjectName name : names) {
+								Map<String, AttributePath> paths = wanted.get(name);
+								if (paths == null) {
+									paths = new LinkedHashMap<String, AttributePath>();
+									wanted.put(name, paths);
+								}
+								for (AttributePath path : client.paths.get(i)) {
+									paths.put(path.getPath(), path);
+								}
+							}
+						}
+					}
+
+					for (Map.Entry<ObjectName, Map<String, AttributePath>> e : wanted.entrySet()) {
+						try {
+							Map<String, Number> values = JMXHelper.readPaths(connection, e.getKey(), e.getValue().values());
+							if (values != null)
+								taken.values.put(e.getKey(), values);
+						} catch (IOException ex) {
+							throw ex;
+						} catch (Exception ex) {
+							LOGGER.error(ex, "failed object: " + e.getKey());
+						}
+					}
+					LOGGER.debug("read " + taken.values.size() + " MBeans from " + host + ":" + port + " for " + clients.size() + " agent(s)");
+					return null;
+				}
+			});
+		} catch (ConnectionException e) {
+			taken.failure = e;
+		}
+		return taken;
+	}
+
+	private static class Snapshot {
+		final long id;
+		final long takenAt = System.currentTimeMillis();
+		final Map<ObjectName, Set<ObjectName>> expansions = new HashMap<ObjectName, Set<ObjectName>>();
+		final Map<ObjectName, Map<String, Number>> values = new HashMap<ObjectName, Map<String, Number>>();
+		ConnectionException failure;
+
+		Snapshot(long id) {
+			this.id = id;
+		}
+	}
+
+	/**
+	 * The queries of one agent.
+	 */
+	public class Client {
+		private final List<ObjectName> patterns = new ArrayList<ObjectName>();
+		private final List<Collection<AttributePath>> paths = new ArrayList<Collection<AttributePath>>();
+		private long lastSnapshot = -1;
+
+		/**
+		 * Registers a query and returns its index in the results of
+		 * {@link #collect()}.
+		 */
+		public int add(ObjectName pattern, Collection<AttributePath> attributePaths) {
+			synchronized (JMXEndpointCollector.this) {
+				patterns.add(pattern);
+				paths.add(attributePaths);
+				return patterns.size() - 1;
+			}
+		}
+
+		/**
+		 * Returns, for each registered query, the values read for it: one
+		 * metric per matching MBean and path, named after the MBean and with
+		 * the path's metric name as value type.
+		 */
+		public List<List<Metric>> collect() throws ConnectionException {
+			Snapshot s = snapshotFor(this);
+			if (s.failure != null)
+				throw s.failure;
+
+			List<List<Metric>> results = new ArrayList<List<Metric>>(patterns.size());
+			for (int i = 0; i < patterns.size(); i++) {
+				List<Metric> result = new ArrayList<Metric>();
+				Set<ObjectName> names = s.expansions.get(patterns.get(i));
+				if (names != null) {
+					for (ObjectName name : names) {
+						Map<String, Number> values = s.values.get(name);
+						if (values == null)
+							continue;
+						for (AttributePath path : paths.get(i)) {
+							Number value = values.get(path.getPath());
+							if (value != null)
+								result.add(new Metric(name.toString(), path.getMetricName(), value));
+						}
+					}
+				}
+				results.add(result);
+			}
+			return results;
+		}
+	}
+}
@@ -1,22 +1,28 @@
 package ar.com.threelegs.newrelic.jmx;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Enumeration;
-import java.util.Map;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.InstanceNotFoundException;
 import javax.management.MBeanServerConnection;
 import javax.management.ObjectInstance;
 import javax.management.ObjectName;
-import javax.management.remote.JMXConnector;
-import javax.management.remote.JMXConnectorFactory;
-import javax.management.remote.JMXServiceURL;
 
 import ar.com.threelegs.newrelic.Metric;
 
@@ -25,27 +31,19 @@ import com.newrelic.metrics.publish.util.Logger;
 public class JMXHelper {
 	
 	private static final Logger LOGGER = Logger.getLogger(JMXHelper.class);
+	private static final long LOCAL_ADDRESSES_REFRESH = TimeUnit.MINUTES.toMillis(5);
+	private static Set<InetAddress> localAddresses;
+	private static long localAddressesRefreshedAt;
 	
 	public static <T> T run(String host, String port, String username, String password, JMXTemplate<T> template) throws ConnectionException {
-		JMXServiceURL address;
-		JMXConnector connector = null;
 		T value = null;
 
 		try {
-			address = new JMXServiceURL("service:jmx:rmi:///jndi/rmi://" + host + ":" + port + "/jmxrmi");
-			Map<String, String[]> env = new Hashtable<String, String[]>();
-			if (username != null && password != null) {
-			    String[] s = { username, password };
-			    env.put(JMXConnector.CREDENTIALS, s);
-			}
-			try {
-				connector = JMXConnectorFactory.connect(address, env);
-			} catch (IOException ex) {
-				throw new ConnectionException(host, ex);
-			}
-			MBeanServerConnection mbs = connector.getMBeanServerConnection();
-
-			value = template.execute(mbs);
+			value = execute(host, port, username, password, template);
+		} catch (ConnectionTimeoutException e4) {
+			// the host is there but not answering, localhost won't do any better
+			LOGGER.info("timed out talking to JMX on " + host + ":" + port);
+			throw e4;
 		} catch (ConnectionException e3) {
 		    LOGGER.info("failed to connect to JMX on " + host + ":" + port);
 		    // try falling back to localhost for JMX access if this IP is for this host
@@ -54,19 +52,7 @@ public class JMXHelper {
 			if (isLocalIP(InetAddress.getByName(host))) {
 			    host = "localhost";
 			    LOGGER.info("IP is local.  Trying fallback JMX connection to " + host + ":" + port);
-			    address = new JMXServiceURL("service:jmx:rmi:///jndi/rmi://" + host + ":" + port + "/jmxrmi");
-			    Map<String, String[]> env = new Hashtable<String, String[]>();
-			    if (username != null && password != null) {
-				String[] s = { username, password };
-				env.put(JMXConnector.CREDENTIALS, s);
-			    }
-			    try {
-				connector = JMXConnectorFactory.connect(address, env);
-			    } catch (IOException ex) {
-				throw new ConnectionException(host, ex);
-			    }
-			    MBeanServerConnection mbs = connector.getMBeanServerConnection();
-			    value = template.execute(mbs);
+			    value = execute(host, port, username, password, template);
 			}
 			else {
 			    throw e3;
@@ -81,13 +67,43 @@ public class JMXHelper {
 		    }
 		} catch (Exception e1) {
 			LOGGER.error(e1);
-		} finally {
-			close(connector);
 		}
 
 		return value;
 	}
 
+	private static <T> T execute(String host, String port, String username, String password, JMXTemplate<T> template) throws Exception {
+		JMXConnectionPool pool = JMXConnectionPool.getInstance();
+		MBeanServerConnection mbs = pool.borrow(host, port, username, password);
+		try {
+			return pool.execute(host, port, username, mbs, template);
+		} catch (IOException e) {
+			if (isTimeout(e)) {
+				pool.invalidate(host, port, username);
+				throw new ConnectionTimeoutException(host, e);
+			}
+			// the pooled connection may have gone stale since the last cycle, reconnect once
+			LOGGER.info("JMX call to " + host + ":" + port + " failed (" + e.getMessage() + "), reconnecting");
+			pool.invalidate(host, port, username);
+			mbs = pool.borrow(host, port, username, password);
+			return pool.execute(host, port, username, mbs, template);
+		}
+	}
+
+	/**
+	 * True if {@code e} or any of its causes is a socket read or connect
+	 * timeout.
+	 */
+	public static boolean isTimeout(Throwable e) {
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof SocketTimeoutException || t instanceof InterruptedIOException)
+				return true;
+			if (t.getCause() == t)
+				break;
+		}
+		return false;
+	}
+
 	public static Set<ObjectInstance> queryConnectionBy(MBeanServerConnection connection, ObjectName objectName) throws Exception {
 		return connection.queryMBeans(objectName, null);
 	}
@@ -108,28 +124,46 @@ public class JMXHelper {
 	}
 
 	public static <T> T queryAndGetAttribute(MBeanServerConnection connection, ObjectName objectName, String attribute) throws Exception {
-		Set<ObjectInstance> instances = queryConnectionBy(connection, objectName);
-
-		if (instances != null && instances.size() == 1) {
+		try {
 			return getAttribute(connection, objectName, attribute);
-		} else {
+		} catch (InstanceNotFoundException e) {
 			return null;
 		}
 	}
-	
+
+	/**
+	 * Reads every attribute of a compiled {@link QueryPlan}, one round trip per
+	 * MBean. The returned array is indexed by the slots handed out by the plan.
+	 */
+	public static Object[] getAttributes(MBeanServerConnection connection, QueryPlan plan) throws Exception {
+		return plan.execute(connection);
+	}
+
 	public static List<Metric> queryAndGetAttributes(MBeanServerConnection connection, ObjectName objectName, List<String> attributes) throws Exception {
+		return queryAndGetAttributePaths(connection, objectName, AttributePath.compile(attributes));
+	}
+
+	/**
+	 * Reads {@code paths} from every MBean matching {@code objectName}, one
+	 * getAttributes call per MBean; an attribute is fetched once however many
+	 * paths start from it. Pattern expansion and attribute types are served
+	 * from the connection's {@link MBeanDiscoveryCache}, and attributes that
+	 * can't yield a number are skipped without being fetched.
+	 * <p>
+	 * The returned metrics are named after the MBean, with the path's metric
+	 * name as their value type.
+	 */
+	public static List<Metric> queryAndGetAttributePaths(MBeanServerConnection connection, ObjectName objectName, List<AttributePath> paths) throws Exception {
 		List<Metric> returnList = new ArrayList<Metric>();
-		Set<ObjectInstance> instances = queryConnectionBy(connection, objectName);
-		if (instances != null && instances.size() > 0) {
-			for (ObjectInstance thisInstance : instances) {
-				for (String thisAttribute : attributes) {
-					try {
-						returnList.add(new Metric(thisInstance.getObjectName().toString(), thisAttribute, (Number)getAttribute(connection, thisInstance.getObjectName(), thisAttribute)));
-					} catch (Exception e) {
-						// Not a number, won't add metric, but won't crash the dang thing
-						LOGGER.error(e, "failed object: " + thisInstance.getObjectName().toString(), "failed attribute: " + thisAttribute);
-					}
-				}
+		MBeanDiscoveryCache cache = MBeanDiscoveryCache.forConnection(connection);
+		for (ObjectName thisName : cache.queryNames(objectName)) {
+			Map<String, Number> values = readPaths(connection, thisName, paths);
+			if (values == null)
+				continue;
+			for (AttributePath path : paths) {
+				Number value = values.get(path.getPath());
+				if (value != null)
+					returnList.add(new Metric(thisName.toString(), path.getMetricName(), value));
 			}
 		}
 		if (!returnList.isEmpty()) {
@@ -140,6 +174,52 @@ public class JMXHelper {
 		}
 	}
 
+	/**
+	 * Reads {@code paths} from one MBean with a single getAttributes call,
+	 * returning the numeric values by path, or {@code null} if the MBean is
+	 * gone. Attributes that can't yield a number are skipped without being
+	 * fetched.
+	 */
+	public static Map<String, Number> readPaths(MBeanServerConnection connection, ObjectName name, Collection<AttributePath> paths) throws Exception {
+		MBeanDiscoveryCache cache = MBeanDiscoveryCache.forConnection(connection);
+		Map<String, Number> result = new HashMap<String, Number>();
+		AttributeList values;
+		try {
+			List<String> roots = new ArrayList<String>(paths.size());
+			for (AttributePath path : paths) {
+				String type = cache.attributeType(name, path.getAttribute());
+				if (type == null)
+					cache.warnOnce(name, path.getPath(), "no such readable attribute");
+				else if (!path.accepts(type))
+					cache.warnOnce(name, path.getPath(), "type " + type + " can't be reported as a number");
+				else if (!roots.contains(path.getAttribute()))
+					roots.add(path.getAttribute());
+			}
+			if (roots.isEmpty())
+				return result;
+			values = connection.getAttributes(name, roots.toArray(new String[roots.size()]));
+		} catch (InstanceNotFoundException e) {
+			LOGGER.debug("MBean went away: " + name);
+			cache.forget(name);
+			return null;
+		}
+
+		for (AttributePath path : paths) {
+			Object value = null;
+			for (Attribute thisAttribute : values.asList()) {
+				if (thisAttribute.getName().equals(path.getAttribute())) {
+					value = path.extract(thisAttribute.getValue());
+					break;
+				}
+			}
+			if (value instanceof Number)
+				result.put(path.getPath(), (Number) value);
+			else if (value != null)
+				cache.warnOnce(name, path.getPath(), "value is not a number");
+		}
+		return result;
+	}
+
 	public static ObjectName getObjectName(String domain, String name, String type, String scope) throws Exception {
 		Hashtable<String, String> map = new Hashtable<String, String>();
 		if (name != null)
@@ -166,16 +246,6 @@ public class JMXHelper {
 		return hashtable;
 	}
 
-	private static void close(JMXConnector connector) {
-		if (connector != null) {
-			try {
-				connector.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
-	}
-
 	public static boolean isLocalIP(InetAddress addr) {
 	    // true if localhost
 	    if (addr.isLoopbackAddress())
@@ -185,24 +255,37 @@ public class JMXHelper {
 	    if (addr.isAnyLocalAddress())
 		return true;
 
-	    // look at each NIC
+	    return localAddresses().contains(addr);
+	}
+
+	/**
+	 * The addresses of every NIC on this host. Scanning the interfaces is
+	 * slow, so the set is only rebuilt every few minutes.
+	 */
+	private static synchronized Set<InetAddress> localAddresses() {
+	    long now = System.currentTimeMillis();
+	    if (localAddresses != null && now - localAddressesRefreshedAt < LOCAL_ADDRESSES_REFRESH)
+		return localAddresses;
+
+	    Set<InetAddress> addresses = new HashSet<InetAddress>();
 	    try {
 		Enumeration<NetworkInterface> nics = NetworkInterface.getNetworkInterfaces();
-		while (nics.hasMoreElements()) {
+		while (nics != null && nics.hasMoreElements()) {
 			NetworkInterface nic = nics.nextElement();
 			Enumeration<InetAddress> ips = nic.getInetAddresses();
 			while (ips.hasMoreElements()) {
-			    InetAddress ip = ips.nextElement();
-			    LOGGER.debug("isLocalIP? for " + addr + "  nic: " + ip);
-
-			    if (ip.equals(addr))
-				return true;
+			    addresses.add(ips.nextElement());
 			}
 		}
 	    }
 	    catch (SocketException e) {
-		return false;
+		LOGGER.warn("unable to list the local network interfaces: " + e.getMessage());
+		if (localAddresses != null)
+		    return localAddresses;
 	    }
-	    return false;
+	    LOGGER.debug("local addresses: " + addresses);
+	    localAddresses = addresses;
+	    localAddressesRefreshedAt = now;
+	    return addresses;
 	}
 }
@@ -0,0 +1,207 @@
+package ar.com.threelegs.newrelic.jmx;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.relation.MBeanServerNotificationFilter;
+
+import com.newrelic.metrics.publish.util.Logger;
+
+/**
+ * Remembers which MBeans match each ObjectName (or ObjectName pattern) on one
+ * connection, so steady-state polls don't scan the remote registry. The
+ * cached sets are kept up to date from the MBeanServerDelegate registration
+ * and unregistration notifications. They are immutable, and replaced by an
+ * updated copy on each notification, so callers can iterate them freely.
+ * <p>
+ * If the listener can't be registered, every lookup falls through to
+ * {@code queryNames} as before.
+ * <p>
+ * A cache lives as long as its connection: the pool {@link #release releases}
+ * it when the connection is closed.
+ * <p>
+ * The attribute types of each MBean are also read once from its MBeanInfo, so
+ * attributes that can't be reported as numbers are never fetched. They are
+ * kept even without the listener, and forgotten when the MBean is found to be
+ * gone.
+ */
+public class MBeanDiscoveryCache implements NotificationListener {
+
+	private static final Logger LOGGER = Logger.getLogger(MBeanDiscoveryCache.class);
+	private static final Map<MBeanServerConnection, MBeanDiscoveryCache> CACHES = new HashMap<MBeanServerConnection, MBeanDiscoveryCache>();
+
+	private final MBeanServerConnection connection;
+	private final Map<ObjectName, Set<ObjectName>> names = new ConcurrentHashMap<ObjectName, Set<ObjectName>>();
+	private volatile boolean subscribed = false;
+	private volatile boolean subscribeFailed = false;
+	private volatile long generation = 0;
+	private final Map<ObjectName, Map<String, String>> attributeTypes = new ConcurrentHashMap<ObjectName, Map<String, String>>();
+	private final Set<String> warned = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private MBeanDiscoveryCache(MBeanServerConnection connection) {
+		this.connection = connection;
+	}
+
+	public static MBeanDiscoveryCache forConnection(MBeanServerConnection connection) {
+		synchronized (CACHES) {
+			MBeanDiscoveryCache cache = CACHES.get(connection);
+			if (cache == null) {
+				cache = new MBeanDiscoveryCache(connection);
+				CACHES.put(connection, cache);
+			}
+			return cache;
+		}
+	}
+
+	/**
+	 * Drops the cache of a connection, e.g. when notifications were lost.
+	 */
+	public static void invalidate(MBeanServerConnection connection) {
+		synchronized (CACHES) {
+			MBeanDiscoveryCache cache = CACHES.get(connection);
+			if (cache != null)
+				cache.clear();
+		}
+	}
+
+	/**
+	 * Forgets the cache of a connection that is being closed, removing its
+	 * listener if {@code unsubscribe}. A failed connection can't be asked to,
+	 * and closing its connector drops the listener anyway.
+	 */
+	public static void release(MBeanServerConnection connection, boolean unsubscribe) {
+		MBeanDiscoveryCache cache;
+		synchronized (CACHES) {
+			cache = CACHES.remove(connection);
+		}
+		if (cache != null && unsubscribe)
+			cache.unsubscribe();
+	}
+
+	/**
+	 * The names of the registered MBeans matching {@code pattern}, as an
+	 * immutable snapshot.
+	 */
+	public Set<ObjectName> queryNames(ObjectName pattern) throws Exception {
+		Set<ObjectName> cached = names.get(pattern);
+		if (cached != null)
+			return cached;
+
+		subscribe();
+		long before = generation;
+		Set<ObjectName> found = Collections.unmodifiableSet(new HashSet<ObjectName>(connection.queryNames(pattern, null)));
+		// only keep the answer if no registration raced with the query and we'll hear about future ones
+		if (subscribed && generation == before)
+			names.put(pattern, found);
+		return found;
+	}
+
+	/**
+	 * The declared type of a readable attribute of {@code name}, or
+	 * {@code null} if it has no such attribute.
+	 */
+	public String attributeType(ObjectName name, String attribute) throws Exception {
+		Map<String, String> types = attributeTypes.get(name);
+		if (types == null) {
+			types = new HashMap<String, String>();
+			for (MBeanAttributeInfo info : connection.getMBeanInfo(name).getAttributes()) {
+				if (info.isReadable())
+					types.put(info.getName(), info.getType());
+			}
+			attributeTypes.put(name, types);
+		}
+		return types.get(attribute);
+	}
+
+	/**
+	 * Forgets what is known about an MBean that turned out to be gone, in
+	 * case another one is registered under its name.
+	 */
+	public void forget(ObjectName name) {
+		attributeTypes.remove(name);
+	}
+
+	/**
+	 * Logs a warning about an attribute the first time it happens only.
+	 */
+	public void warnOnce(ObjectName name, String attribute, String reason) {
+		if (warned.add(name + "#" + attribute))
+			LOGGER.warn("skipping attribute " + attribute + " of " + name + ": " + reason);
+	}
+
+	static boolean isReportable(String type) {
+		return NUMERIC_TYPES.contains(type);
+	}
+
+	private static final Set<String> NUMERIC_TYPES = new HashSet<String>(Arrays.asList(
+			"byte", "short", "int", "long", "float", "double",
+			"java.lang.Byte", "java.lang.Short", "java.lang.Integer", "java.lang.Long", "java.lang.Float", "java.lang.Double",
+			"java.lang.Number", "java.math.BigInteger", "java.math.BigDecimal",
+			"java.util.concurrent.atomic.AtomicInteger", "java.util.concurrent.atomic.AtomicLong",
+			// dynamic MBeans that don't declare a type, checked when the value arrives
+			"java.lang.Object"));
+
+	public void clear() {
+		generation++;
+		names.clear();
+		attributeTypes.clear();
+	}
+
+	@Override
+	public void handleNotification(Notification notification, Object handback) {
+		if (!(notification instanceof MBeanServerNotification))
+			return;
+
+		generation++;
+		ObjectName name = ((MBeanServerNotification) notification).getMBeanName();
+		boolean registered = MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(notification.getType());
+		attributeTypes.remove(name);
+		for (Map.Entry<ObjectName, Set<ObjectName>> e : names.entrySet()) {
+			if (e.getKey().apply(name)) {
+				Set<ObjectName> updated = new HashSet<ObjectName>(e.getValue());
+				if (registered)
+					updated.add(name);
+				else
+					updated.remove(name);
+				e.setValue(Collections.unmodifiableSet(updated));
+			}
+		}
+	}
+
+	private synchronized void subscribe() {
+		if (subscribed || subscribeFailed)
+			return;
+		try {
+			MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+			filter.enableAllObjectNames();
+			connection.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this, filter, null);
+			subscribed = true;
+		} catch (Exception e) {
+			subscribeFailed = true;
+			LOGGER.warn("unable to listen for MBean registrations, MBean patterns will be queried on every poll: " + e.getMessage());
+		}
+	}
+
+	private synchronized void unsubscribe() {
+		if (!subscribed)
+			return;
+		subscribed = false;
+		try {
+			connection.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this);
+		} catch (Exception e) {
+			LOGGER.debug("unable to remove the MBean registration listener: " + e.getMessage());
+		}
+	}
+}
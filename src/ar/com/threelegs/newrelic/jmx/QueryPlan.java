@@ -0,0 +1,128 @@
+package ar.com.threelegs.newrelic.jmx;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+
+import com.newrelic.metrics.publish.util.Logger;
+
+/**
+ * A fixed set of MBean attributes that is read with one
+ * {@link MBeanServerConnection#getAttributes} call per MBean.
+ * <p>
+ * Attributes are registered once with {@link #add}, which returns the slot the
+ * value will be found in, and the plan is then {@link #compile() compiled}.
+ * A compiled plan is immutable and may be shared between threads and hosts.
+ * MBeans that are not registered on the target, and attributes they don't
+ * expose, simply come back as {@code null}.
+ */
+public class QueryPlan {
+
+	private static final Logger LOGGER = Logger.getLogger(QueryPlan.class);
+
+	private Map<ObjectName, List<Slot>> pending = new LinkedHashMap<ObjectName, List<Slot>>();
+	private int size = 0;
+
+	private ObjectName[] names;
+	private String[][] attributes;
+	private int[][] slots;
+
+	public int add(ObjectName objectName, String attribute) {
+		if (names != null)
+			throw new IllegalStateException("query plan already compiled");
+
+		List<Slot> attrs = pending.get(objectName);
+		if (attrs == null) {
+			attrs = new ArrayList<Slot>();
+			pending.put(objectName, attrs);
+		}
+		for (Slot s : attrs) {
+			if (s.attribute.equals(attribute))
+				return s.index;
+		}
+		Slot s = new Slot(attribute, size++);
+		attrs.add(s);
+		return s.index;
+	}
+
+	public int add(String domain, String attribute, String... keys) {
+		try {
+			return add(JMXHelper.getObjectNameByKeys(domain, keys), attribute);
+		} catch (Exception e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	public QueryPlan compile() {
+		names = new ObjectName[pending.size()];
+		attributes = new String[pending.size()][];
+		slots = new int[pending.size()][];
+
+		int i = 0;
+		for (Map.Entry<ObjectName, List<Slot>> e : pending.entrySet()) {
+			List<Slot> attrs = e.getValue();
+			names[i] = e.getKey();
+			attributes[i] = new String[attrs.size()];
+			slots[i] = new int[attrs.size()];
+			for (int j = 0; j < attrs.size(); j++) {
+				attributes[i][j] = attrs.get(j).attribute;
+				slots[i][j] = attrs.get(j).index;
+			}
+			i++;
+		}
+		pending = null;
+		return this;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Reads every attribute in the plan, one round trip per MBean. Connection
+	 * failures are propagated so the caller can reconnect.
+	 */
+	public Object[] execute(MBeanServerConnection connection) throws Exception {
+		if (names == null)
+			throw new IllegalStateException("query plan not compiled");
+
+		Object[] values = new Object[size];
+		for (int i = 0; i < names.length; i++) {
+			AttributeList result;
+			try {
+				result = connection.getAttributes(names[i], attributes[i]);
+			} catch (InstanceNotFoundException e) {
+				LOGGER.debug("MBean not found: " + names[i]);
+				continue;
+			}
+
+			for (Attribute a : result.asList()) {
+				String[] attrs = attributes[i];
+				for (int j = 0; j < attrs.length; j++) {
+					if (attrs[j].equals(a.getName())) {
+						values[slots[i][j]] = a.getValue();
+						break;
+					}
+				}
+			}
+		}
+		return values;
+	}
+
+	private static class Slot {
+		final String attribute;
+		final int index;
+
+		Slot(String attribute, int index) {
+			this.attribute = attribute;
+			this.index = index;
+		}
+	}
+}
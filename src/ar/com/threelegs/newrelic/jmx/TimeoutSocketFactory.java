@@ -0,0 +1,57 @@
+package ar.com.threelegs.newrelic.jmx;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.server.RMISocketFactory;
+
+/**
+ * RMI socket factory with a bounded connect time and a read timeout on every
+ * socket, so a host that accepts connections but never answers (stuck in GC,
+ * swapping) can't block the polling thread indefinitely.
+ */
+public class TimeoutSocketFactory extends RMISocketFactory implements Serializable {
+
+	private static final long serialVersionUID = -2981262539453960171L;
+
+	private final int connectTimeout;
+	private final int readTimeout;
+
+	public TimeoutSocketFactory(int connectTimeout, int readTimeout) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+	}
+
+	@Override
+	public Socket createSocket(String host, int port) throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, port), connectTimeout);
+			socket.setSoTimeout(readTimeout);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		return socket;
+	}
+
+	@Override
+	public ServerSocket createServerSocket(int port) throws IOException {
+		return new ServerSocket(port);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof TimeoutSocketFactory))
+			return false;
+		TimeoutSocketFactory other = (TimeoutSocketFactory) o;
+		return connectTimeout == other.connectTimeout && readTimeout == other.readTimeout;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * connectTimeout + readTimeout;
+	}
+}
@@ -0,0 +1,67 @@
+package ar.com.threelegs.newrelic.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link LatencyHistogram} that any number of threads record into without
+ * locking, plus the exact max, handed over and reset once per reporting cycle
+ * by {@link #drain()}.
+ */
+public class AtomicHistogram {
+
+	private final int size;
+	private final AtomicLongArray buckets;
+	private final AtomicLong max = new AtomicLong();
+
+	public AtomicHistogram(int size) {
+		this.size = size;
+		this.buckets = new AtomicLongArray(size);
+	}
+
+	public void record(long value) {
+		buckets.incrementAndGet(LatencyHistogram.bucketFor(value, size));
+		long m = max.get();
+		while (value > m && !max.compareAndSet(m, value)) {
+			m = max.get();
+		}
+	}
+
+	/**
+	 * Takes what was recorded and starts over. A value recorded while
+	 * draining ends up in this interval or the next, never in both.
+	 */
+	public Interval drain() {
+		long[] counts = new long[size];
+		long count = 0;
+		for (int i = 0; i < size; i++) {
+			counts[i] = buckets.getAndSet(i, 0);
+			count += counts[i];
+		}
+		return new Interval(new LatencyHistogram(counts), count, max.getAndSet(0));
+	}
+
+	/**
+	 * What was recorded during one interval.
+	 */
+	public static class Interval {
+		public final LatencyHistogram histogram;
+		public final long count;
+		public final long max;
+
+		Interval(LatencyHistogram histogram, long count, long max) {
+			this.histogram = histogram;
+			this.count = count;
+			this.max = max;
+		}
+
+		/**
+		 * The given percentile (0..1), to bucket resolution but never above
+		 * the exact max, or {@code null} if nothing was recorded.
+		 */
+		public Long percentile(double p) {
+			Long value = histogram.percentile(p);
+			return value != null ? Math.min(value, max) : null;
+		}
+	}
+}
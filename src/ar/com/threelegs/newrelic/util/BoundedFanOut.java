@@ -0,0 +1,177 @@
+package ar.com.threelegs.newrelic.util;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a batch of tasks, typically one poll per host, on bounded worker
+ * pools and waits for them on the calling thread.
+ * <p>
+ * Each task gets its pool's timeout from the moment it starts. Tasks still
+ * queued behind stuck workers must not hold the batch forever, so they are
+ * also bounded by a deadline of one timeout per wave of {@code parallelism}
+ * tasks of their pool. A task past its deadline is cancelled, which
+ * interrupts its worker, and reported as timed out.
+ * <p>
+ * Outcomes are handed to a {@link Listener} on the calling thread only, so it
+ * can merge results without locking.
+ */
+public class BoundedFanOut {
+
+	/**
+	 * A fixed pool of daemon workers, and the time each task gets on it.
+	 */
+	public static class Pool {
+		private final ExecutorService executor;
+		private final int parallelism;
+		private final long timeoutNanos;
+
+		public Pool(final String name, int parallelism, long timeoutNanos) {
+			this.parallelism = parallelism;
+			this.timeoutNanos = timeoutNanos;
+			this.executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, name + "-poller-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+	}
+
+	/**
+	 * One task of a batch, run on {@code pool}.
+	 */
+	public abstract static class Task<T> implements Callable<T> {
+		final Pool pool;
+		private final AtomicBoolean started = new AtomicBoolean();
+		volatile long startedAt;
+
+		protected Task(Pool pool) {
+			this.pool = pool;
+		}
+
+		@Override
+		public final T call() throws Exception {
+			// a task given up on before it started doesn't run
+			if (!started.compareAndSet(false, true))
+				return null;
+			startedAt = System.nanoTime();
+			try {
+				return run();
+			} finally {
+				finish();
+			}
+		}
+
+		protected abstract T run() throws Exception;
+
+		/**
+		 * Called once the task is over, or given up on before it started,
+		 * e.g. to release what keeps it from running twice.
+		 */
+		protected void finish() {
+		}
+
+		/**
+		 * Called on the waiting thread when the task is given up on while it
+		 * runs, e.g. to kill a process it waits for.
+		 */
+		protected void abandon() {
+		}
+
+		void expire() {
+			if (started.compareAndSet(false, true))
+				finish();
+			else
+				abandon();
+		}
+	}
+
+	/**
+	 * What became of each task of a batch.
+	 */
+	public interface Listener<P, T> {
+		void completed(P task, T result);
+
+		void failed(P task, Throwable cause);
+
+		void timedOut(P task);
+	}
+
+	/**
+	 * Submits {@code tasks} and waits until each of them completed, failed or
+	 * ran past its deadline.
+	 */
+	public static <T, P extends Task<T>> void run(List<P> tasks, Listener<P, T> listener) throws InterruptedException {
+		BlockingQueue<Future<T>> done = new LinkedBlockingQueue<Future<T>>();
+		Map<Future<T>, P> pending = new HashMap<Future<T>, P>();
+		Map<Pool, Integer> queued = new HashMap<Pool, Integer>();
+		for (P task : tasks) {
+			pending.put(new ExecutorCompletionService<T>(task.pool.executor, done).submit(task), task);
+			queued.put(task.pool, queued.containsKey(task.pool) ? queued.get(task.pool) + 1 : 1);
+		}
+
+		long start = System.nanoTime();
+		Map<Pool, Long> batchDeadlines = new HashMap<Pool, Long>();
+		for (Map.Entry<Pool, Integer> e : queued.entrySet()) {
+			Pool pool = e.getKey();
+			long waves = (e.getValue() + pool.parallelism - 1) / pool.parallelism;
+			batchDeadlines.put(pool, start + waves * pool.timeoutNanos);
+		}
+
+		while (!pending.isEmpty()) {
+			long now = System.nanoTime();
+			Long wakeUp = null;
+
+			Iterator<Map.Entry<Future<T>, P>> it = pending.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<Future<T>, P> e = it.next();
+				Future<T> future = e.getKey();
+				P task = e.getValue();
+
+				if (future.isDone()) {
+					it.remove();
+					try {
+						listener.completed(task, future.get());
+					} catch (ExecutionException ex) {
+						listener.failed(task, ex.getCause());
+					}
+					continue;
+				}
+
+				long batchDeadline = batchDeadlines.get(task.pool);
+				long startedAt = task.startedAt;
+				long deadline = startedAt != 0 ? Math.min(startedAt + task.pool.timeoutNanos, batchDeadline) : batchDeadline;
+				if (now - deadline >= 0) {
+					future.cancel(true);
+					task.expire();
+					it.remove();
+					listener.timedOut(task);
+				} else if (wakeUp == null || deadline - wakeUp < 0) {
+					wakeUp = deadline;
+				}
+			}
+
+			if (!pending.isEmpty())
+				done.poll(Math.max(wakeUp - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+		}
+	}
+}
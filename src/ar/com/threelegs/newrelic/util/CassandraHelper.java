@@ -1,29 +1,119 @@
 package ar.com.threelegs.newrelic.util;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanException;
 import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
 
+import ar.com.threelegs.newrelic.jmx.ConnectionException;
 import ar.com.threelegs.newrelic.jmx.JMXHelper;
 import ar.com.threelegs.newrelic.jmx.JMXTemplate;
+import ar.com.threelegs.newrelic.jmx.QueryPlan;
 
 import com.newrelic.metrics.publish.util.Logger;
 
 public class CassandraHelper {
 	private static final Logger LOGGER = Logger.getLogger(CassandraHelper.class);
 
-	@SuppressWarnings("rawtypes")
+	private static final QueryPlan TOPOLOGY_PLAN = new QueryPlan();
+	private static final int LIVE_NODES = TOPOLOGY_PLAN.add("org.apache.cassandra.db", "LiveNodes", "type=StorageService");
+	private static final int UNREACHABLE_NODES = TOPOLOGY_PLAN.add("org.apache.cassandra.db", "UnreachableNodes", "type=StorageService");
+
+	private static final String SNITCH = "org.apache.cassandra.db:type=EndpointSnitchInfo";
+
+	static {
+		TOPOLOGY_PLAN.compile();
+	}
+
 	public static List<String> getRingHosts(String discoveryHost, String jmxPort, String user, String pass) throws Exception {
+		RingTopology topology = getRingTopology(discoveryHost, jmxPort, user, pass, null);
+		return topology != null ? new ArrayList<String>(topology.getLiveHosts()) : null;
+	}
+
+	/**
+	 * The ring as seen by {@code discoveryHost}. The datacenters of the
+	 * endpoints already in {@code previous} are carried over, so the snitch is
+	 * only asked about endpoints not seen before.
+	 */
+	public static RingTopology getRingTopology(final String discoveryHost, String jmxPort, String user, String pass, final RingTopology previous)
+			throws ConnectionException {
 
-		return JMXHelper.run(discoveryHost, jmxPort, user, pass, new JMXTemplate<List<String>>() {
+		return JMXHelper.run(discoveryHost, jmxPort, user, pass, new JMXTemplate<RingTopology>() {
 			@Override
-			public List<String> execute(MBeanServerConnection connection) throws Exception {
-				return JMXHelper.queryAndGetAttribute(connection, JMXHelper.getObjectNameByKeys("org.apache.cassandra.db", "type=StorageService"), "LiveNodes");
+			public RingTopology execute(MBeanServerConnection connection) throws Exception {
+				Object[] v = JMXHelper.getAttributes(connection, TOPOLOGY_PLAN);
+				List<String> live = toList(v[LIVE_NODES]);
+				List<String> unreachable = toList(v[UNREACHABLE_NODES]);
 
+				// the snitch of one node knows where every endpoint is
+				Map<String, String> datacenters = new HashMap<String, String>();
+				List<String> all = new ArrayList<String>(live);
+				all.addAll(unreachable);
+				try {
+					ObjectName snitch = new ObjectName(SNITCH);
+					for (String host : all) {
+						String dc = previous != null ? previous.getDatacenter(host) : null;
+						if (dc == null)
+							dc = (String) connection.invoke(snitch, "getDatacenter", new Object[] { host }, new String[] { String.class.getName() });
+						datacenters.put(host, dc);
+					}
+				} catch (InstanceNotFoundException e) {
+					LOGGER.debug("no EndpointSnitchInfo on " + discoveryHost + ", datacenters are unknown");
+				} catch (MBeanException e) {
+					LOGGER.debug(e, "can't get the datacenters from " + discoveryHost);
+				}
+				return new RingTopology(live, unreachable, datacenters, discoveryHost);
 			}
 		});
 
 	}
+
+	public static Number number(Object value) {
+		return value instanceof Number ? (Number) value : null;
+	}
+
+	public static Double toMillis(Object value, Object unit) {
+		if (!(value instanceof Number))
+			return null;
+		double sourceValue = ((Number) value).doubleValue();
+		if (unit == null)
+			return sourceValue;
+
+		switch (TimeUnit.valueOf(unit.toString().toUpperCase())) {
+		case DAYS:
+			return sourceValue * 86400000;
+		case MICROSECONDS:
+			return sourceValue * 0.001;
+		case HOURS:
+			return sourceValue * 3600000;
+		case MILLISECONDS:
+			return sourceValue;
+		case MINUTES:
+			return sourceValue * 60000;
+		case NANOSECONDS:
+			return sourceValue * 1.0e-6;
+		case SECONDS:
+			return sourceValue * 1000;
+		default:
+			return sourceValue;
+		}
+	}
+
+	private static List<String> toList(Object value) {
+		List<String> hosts = new ArrayList<String>();
+		if (value instanceof List) {
+			for (Object o : (List<?>) value) {
+				hosts.add(String.valueOf(o));
+			}
+		} else if (value != null) {
+			LOGGER.warn("unexpected node list type: " + value.getClass().getName());
+		}
+		return hosts;
+	}
 }
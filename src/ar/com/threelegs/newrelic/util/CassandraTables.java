@@ -0,0 +1,226 @@
+package ar.com.threelegs.newrelic.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+
+import ar.com.threelegs.newrelic.Metric;
+import ar.com.threelegs.newrelic.jmx.JMXHelper;
+import ar.com.threelegs.newrelic.jmx.QueryPlan;
+
+import com.newrelic.metrics.publish.util.Logger;
+
+/**
+ * Per-table metrics for the hottest tables of each node.
+ * <p>
+ * A node can have thousands of table MBeans, so the tables are discovered
+ * with one wildcard {@code queryNames} and ranked by read+write count only
+ * every {@code refreshInterval} millis. Ranking costs two reads per table, so
+ * it is spread over as many polls as it takes, reading the counts of at most
+ * {@code rankBatch} tables per poll, and the previous selection keeps being
+ * reported meanwhile. Between refreshes, only the {@code limit} hottest tables
+ * are read, through a query plan compiled once the ranking is done.
+ */
+public class CassandraTables {
+
+	private static final Logger LOGGER = Logger.getLogger(CassandraTables.class);
+	private static final String METRICS = "org.apache.cassandra.metrics";
+	// Cassandra 3.0 renamed the ColumnFamily metrics to Table
+	private static final String[] TYPES = { "Table", "ColumnFamily" };
+
+	private final long refreshInterval;
+	private final int limit;
+	private final int rankBatch;
+	private final Map<String, Selection> selections = new ConcurrentHashMap<String, Selection>();
+	private final Map<String, Ranking> rankings = new ConcurrentHashMap<String, Ranking>();
+
+	public CassandraTables(long refreshInterval, int limit, int rankBatch) {
+		this.refreshInterval = refreshInterval;
+		this.limit = limit;
+		this.rankBatch = rankBatch;
+	}
+
+	/**
+	 * Adds the metrics of the selected tables of {@code host} to
+	 * {@code metrics}, first ranking the next batch of tables if a refresh is
+	 * due. Nothing is added until the first ranking of a host is done.
+	 */
+	public void collect(String host, MBeanServerConnection connection, List<Metric> metrics) throws Exception {
+		Selection selection = selections.get(host);
+		Ranking ranking = rankings.get(host);
+		if (ranking == null && (selection == null || System.currentTimeMillis() - selection.refreshedAt > refreshInterval)) {
+			ranking = discover(connection, selection);
+			rankings.put(host, ranking);
+		}
+		if (ranking != null && rank(connection, ranking)) {
+			rankings.remove(host);
+			selection = select(host, ranking, selection);
+			selections.put(host, selection);
+		}
+		if (selection == null)
+			return;
+
+		Object[] v = JMXHelper.getAttributes(connection, selection.plan);
+		for (int i = 0; i < selection.tables.size(); i++) {
+			int[] slots = selection.slots[i];
+			String prefix = "Cassandra/hosts/" + host + "/Tables/" + selection.tables.get(i) + "/";
+
+			metrics.add(new Metric(prefix + "Latency/Reads", "millis", CassandraHelper.toMillis(v[slots[READ_MEAN]], v[slots[READ_UNIT]])));
+			metrics.add(new Metric(prefix + "Latency/Writes", "millis", CassandraHelper.toMillis(v[slots[WRITE_MEAN]], v[slots[WRITE_UNIT]])));
+			metrics.add(new Metric(prefix + "SSTablesPerRead", "count", CassandraHelper.number(v[slots[SSTABLES_PER_READ]])));
+			metrics.add(new Metric(prefix + "TombstonesScanned", "count", CassandraHelper.number(v[slots[TOMBSTONES_SCANNED]])));
+			metrics.add(new Metric(prefix + "Storage/LiveDiskSpaceUsed", "bytes", CassandraHelper.number(v[slots[LIVE_DISK_SPACE]])));
+		}
+	}
+
+	/**
+	 * Forgets the hosts that are no longer part of the ring.
+	 */
+	public void retain(Collection<String> hosts) {
+		selections.keySet().retainAll(hosts);
+		rankings.keySet().retainAll(hosts);
+	}
+
+	private static final int READ_MEAN = 0;
+	private static final int READ_UNIT = 1;
+	private static final int WRITE_MEAN = 2;
+	private static final int WRITE_UNIT = 3;
+	private static final int SSTABLES_PER_READ = 4;
+	private static final int TOMBSTONES_SCANNED = 5;
+	private static final int LIVE_DISK_SPACE = 6;
+
+	/**
+	 * Starts a ranking with the tables {@code host} has now.
+	 */
+	private Ranking discover(MBeanServerConnection connection, Selection previous) throws Exception {
+		String type = previous != null ? previous.type : null;
+		Set<ObjectName> names = Collections.emptySet();
+		for (String t : type != null ? new String[] { type } : TYPES) {
+			names = connection.queryNames(new ObjectName(METRICS + ":type=" + t + ",name=ReadLatency,*"), null);
+			if (!names.isEmpty()) {
+				type = t;
+				break;
+			}
+		}
+
+		List<String> tables = new ArrayList<String>(names.size());
+		for (ObjectName name : names) {
+			String keyspace = name.getKeyProperty("keyspace");
+			String table = name.getKeyProperty("scope");
+			if (keyspace != null && table != null)
+				tables.add(keyspace + "/" + table);
+		}
+		return new Ranking(type, tables);
+	}
+
+	/**
+	 * Reads the read and write counts of the next {@code rankBatch} tables,
+	 * returning whether every table has been read.
+	 */
+	private boolean rank(MBeanServerConnection connection, Ranking ranking) throws Exception {
+		int end = Math.min(ranking.next + rankBatch, ranking.tables.size());
+		QueryPlan countPlan = new QueryPlan();
+		int[][] countSlots = new int[end - ranking.next][];
+		for (int i = ranking.next; i < end; i++) {
+			String[] t = ranking.tables.get(i).split("/", 2);
+			countSlots[i - ranking.next] = new int[] {
+					countPlan.add(tableName(ranking.type, t[0], t[1], "ReadLatency"), "Count"),
+					countPlan.add(tableName(ranking.type, t[0], t[1], "WriteLatency"), "Count") };
+		}
+		Object[] v = JMXHelper.getAttributes(connection, countPlan.compile());
+
+		for (int i = ranking.next; i < end; i++) {
+			Number reads = CassandraHelper.number(v[countSlots[i - ranking.next][0]]);
+			Number writes = CassandraHelper.number(v[countSlots[i - ranking.next][1]]);
+			ranking.counts.put(ranking.tables.get(i), (reads != null ? reads.longValue() : 0) + (writes != null ? writes.longValue() : 0));
+		}
+		ranking.next = end;
+		return end == ranking.tables.size();
+	}
+
+	private Selection select(String host, Ranking ranking, Selection previous) throws Exception {
+		String type = ranking.type;
+
+		// rank by the requests served since the last refresh, or since startup on the first one
+		final Map<String, Long> scores = new HashMap<String, Long>();
+		List<String> tables = new ArrayList<String>(ranking.counts.keySet());
+		for (Map.Entry<String, Long> e : ranking.counts.entrySet()) {
+			long count = e.getValue();
+			Long last = previous != null ? previous.counts.get(e.getKey()) : null;
+			scores.put(e.getKey(), last != null && last <= count ? count - last : count);
+		}
+		Collections.sort(tables, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				return scores.get(b).compareTo(scores.get(a));
+			}
+		});
+		if (tables.size() > limit)
+			tables = new ArrayList<String>(tables.subList(0, limit));
+
+		QueryPlan plan = new QueryPlan();
+		int[][] slots = new int[tables.size()][];
+		for (int i = 0; i < tables.size(); i++) {
+			String[] t = tables.get(i).split("/", 2);
+			ObjectName reads = tableName(type, t[0], t[1], "ReadLatency");
+			ObjectName writes = tableName(type, t[0], t[1], "WriteLatency");
+			slots[i] = new int[] {
+					plan.add(reads, "Mean"),
+					plan.add(reads, "DurationUnit"),
+					plan.add(writes, "Mean"),
+					plan.add(writes, "DurationUnit"),
+					plan.add(tableName(type, t[0], t[1], "SSTablesPerReadHistogram"), "Mean"),
+					plan.add(tableName(type, t[0], t[1], "TombstoneScannedHistogram"), "Mean"),
+					plan.add(tableName(type, t[0], t[1], "LiveDiskSpaceUsed"), "Count") };
+		}
+
+		LOGGER.debug("host [" + host + "]: collecting table metrics for " + tables.size() + " of " + ranking.counts.size() + " tables");
+		return new Selection(type, tables, plan.compile(), slots, ranking.counts);
+	}
+
+	private static ObjectName tableName(String type, String keyspace, String table, String name) throws Exception {
+		return JMXHelper.getObjectNameByKeys(METRICS, "type=" + type, "keyspace=" + keyspace, "scope=" + table, "name=" + name);
+	}
+
+	private static class Selection {
+		final String type;
+		final List<String> tables;
+		final QueryPlan plan;
+		final int[][] slots;
+		final Map<String, Long> counts;
+		final long refreshedAt = System.currentTimeMillis();
+
+		Selection(String type, List<String> tables, QueryPlan plan, int[][] slots, Map<String, Long> counts) {
+			this.type = type;
+			this.tables = tables;
+			this.plan = plan;
+			this.slots = slots;
+			this.counts = counts;
+		}
+	}
+
+	/**
+	 * A refresh in progress: the tables found, and the counts of those read
+	 * so far.
+	 */
+	private static class Ranking {
+		final String type;
+		final List<String> tables;
+		final Map<String, Long> counts = new HashMap<String, Long>();
+		int next;
+
+		Ranking(String type, List<String> tables) {
+			this.type = type;
+			this.tables = tables;
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package ar.com.threelegs.newrelic.util;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Turns monotonic counters into per-interval deltas and per-second rates.
+ * <p>
+ * Counters are identified by a fixed id between 0 and {@code size - 1}; the
+ * last value of every counter is kept per host in a primitive array indexed by
+ * that id. The first sample of a counter only sets
+ * the baseline, and a counter that goes backwards (the node restarted) is
+ * re-baselined, so neither case produces a spike.
+ */
+public class CounterRates {
+
+	private static final long UNSET = -1;
+
+	private final int size;
+	private final Map<String, State> states = new ConcurrentHashMap<String, State>();
+
+	public CounterRates(int size) {
+		this.size = size;
+	}
+
+	/**
+	 * Starts a new interval for {@code host}, ending now. Each host must only
+	 * be sampled from one thread at a time.
+	 */
+	public Interval sample(String host) {
+		State state = states.get(host);
+		if (state == null) {
+			state = new State(size);
+			states.put(host, state);
+		}
+		long now = System.nanoTime();
+		Interval interval = new Interval(state, state.lastSample == UNSET ? 0 : now - state.lastSample);
+		state.lastSample = now;
+		return interval;
+	}
+
+	/**
+	 * Forgets the hosts that are no longer part of the ring.
+	 */
+	public void retain(Collection<String> hosts) {
+		states.keySet().retainAll(hosts);
+	}
+
+	private static class State {
+		final long[] last;
+		long lastSample = UNSET;
+
+		State(int size) {
+			last = new long[size];
+			Arrays.fill(last, UNSET);
+		}
+	}
+
+	public static class Interval {
+		private final State state;
+		private final long elapsedNanos;
+
+		Interval(State state, long elapsedNanos) {
+			this.state = state;
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		/**
+		 * How much the counter grew during this interval, or {@code null} on
+		 * the first sample, after a reset, or if the value is missing.
+		 */
+		public Long delta(int id, Number value) {
+			if (value == null) {
+				state.last[id] = UNSET;
+				return null;
+			}
+			long current = value.longValue();
+			long previous = state.last[id];
+			state.last[id] = current;
+
+			if (previous == UNSET || current < previous)
+				return null;
+			return current - previous;
+		}
+
+		/**
+		 * Like {@link #delta} but divided by the length of the interval in
+		 * seconds.
+		 */
+		public Double rate(int id, Number value) {
+			Long delta = delta(id, value);
+			if (delta == null || elapsedNanos <= 0)
+				return null;
+			return delta / (elapsedNanos / 1.0e9);
+		}
+	}
+}
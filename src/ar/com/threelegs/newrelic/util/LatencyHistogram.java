@@ -0,0 +1,148 @@
+package ar.com.threelegs.newrelic.util;
+
+import java.util.Arrays;
+
+/**
+ * Bucket counts laid out like Cassandra's {@code EstimatedHistogram}: bucket
+ * {@code i} holds the values up to {@code offset(i)}, where offsets start at 1
+ * and grow by a factor of 1.2, and the last bucket is the overflow.
+ * <p>
+ * Histograms with the same layout can be merged by adding their buckets, which
+ * gives exact ring-wide percentiles (to bucket resolution) instead of an
+ * average of per-node percentiles.
+ */
+public class LatencyHistogram {
+
+	private static volatile long[] bucketOffsets = offsets(new long[0], 165);
+
+	private long[] buckets;
+
+	public LatencyHistogram() {
+		this(new long[0]);
+	}
+
+	public LatencyHistogram(long[] buckets) {
+		this.buckets = buckets;
+	}
+
+	/**
+	 * Returns the histogram of what was recorded between {@code previous} and
+	 * {@code current}, or {@code null} if there is no previous sample or a
+	 * bucket went backwards (the node restarted and the counters were reset).
+	 */
+	public static LatencyHistogram delta(long[] previous, long[] current) {
+		if (previous == null || current == null || previous.length != current.length)
+			return null;
+
+		long[] delta = new long[current.length];
+		for (int i = 0; i < current.length; i++) {
+			delta[i] = current[i] - previous[i];
+			if (delta[i] < 0)
+				return null;
+		}
+		return new LatencyHistogram(delta);
+	}
+
+	public long[] getBuckets() {
+		return buckets;
+	}
+
+	public void merge(LatencyHistogram other) {
+		if (other == null)
+			return;
+		if (other.buckets.length > buckets.length)
+			buckets = Arrays.copyOf(buckets, other.buckets.length);
+		for (int i = 0; i < other.buckets.length; i++) {
+			buckets[i] += other.buckets[i];
+		}
+	}
+
+	public long count() {
+		long count = 0;
+		for (long b : buckets) {
+			count += b;
+		}
+		return count;
+	}
+
+	/**
+	 * The upper bound of the bucket holding the given percentile (0..1), or
+	 * {@code null} if the histogram is empty.
+	 */
+	public Long percentile(double p) {
+		long count = count();
+		if (count == 0)
+			return null;
+
+		long target = (long) Math.ceil(count * p);
+		if (target < 1)
+			target = 1;
+		long seen = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			seen += buckets[i];
+			if (seen >= target)
+				return offset(i);
+		}
+		return offset(buckets.length - 1);
+	}
+
+	/**
+	 * The upper bound of the highest non-empty bucket, or {@code null} if the
+	 * histogram is empty.
+	 */
+	public Long max() {
+		for (int i = buckets.length - 1; i >= 0; i--) {
+			if (buckets[i] > 0)
+				return offset(i);
+		}
+		return null;
+	}
+
+	/**
+	 * The bucket a value falls in, in a histogram of {@code size} buckets:
+	 * the first one whose upper bound is not below it, or the overflow bucket.
+	 */
+	public static int bucketFor(long value, int size) {
+		long[] offsets = bucketOffsets;
+		if (offsets.length < size - 1) {
+			offsets = offsets(offsets, size - 1);
+			bucketOffsets = offsets;
+		}
+		int i = Arrays.binarySearch(offsets, 0, size - 1, value);
+		return i >= 0 ? i : -i - 1;
+	}
+
+	/**
+	 * The upper bound of bucket {@code i}. The overflow bucket has no upper
+	 * bound, so it reports the largest finite offset.
+	 */
+	private long offset(int i) {
+		int last = buckets.length - 2;
+		if (i > last)
+			i = Math.max(last, 0);
+		long[] offsets = bucketOffsets;
+		if (i >= offsets.length) {
+			offsets = offsets(offsets, i + 1);
+			bucketOffsets = offsets;
+		}
+		return offsets[i];
+	}
+
+	private static long[] offsets(long[] known, int size) {
+		long[] result = Arrays.copyOf(known, Math.max(size, known.length));
+		long last = known.length > 0 ? known[known.length - 1] : 1;
+		int start = known.length;
+		if (start == 0) {
+			result[0] = 1;
+			start = 1;
+		}
+		for (int i = start; i < result.length; i++) {
+			long next = Math.round(last * 1.2);
+			if (next == last)
+				next++;
+			result[i] = next;
+			last = next;
+		}
+		return result;
+	}
+}
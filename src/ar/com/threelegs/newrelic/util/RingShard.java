@@ -0,0 +1,112 @@
+package ar.com.threelegs.newrelic.util;
+
+import java.net.InetAddress;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import ar.com.threelegs.newrelic.jmx.JMXHelper;
+
+import com.newrelic.metrics.publish.util.Logger;
+
+/**
+ * The part of the ring one plugin instance polls when the ring is split
+ * between several of them.
+ * <p>
+ * Hosts are assigned to shards by consistent hashing: every shard owns
+ * {@code VNODES} points on a hash ring and a host belongs to the shard owning
+ * the first point at or after the host's hash, so adding a node or a shard
+ * only moves a small part of the hosts. In local mode, the instance only polls
+ * the node running on its own machine.
+ */
+public class RingShard {
+
+	private static final Logger LOGGER = Logger.getLogger(RingShard.class);
+	private static final int VNODES = 64;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final int index;
+	private final TreeMap<Long, Integer> points;
+	private final String id;
+
+	private RingShard(int index, TreeMap<Long, Integer> points, String id) {
+		this.index = index;
+		this.points = points;
+		this.id = id;
+	}
+
+	public static RingShard of(int index, int count) {
+		if (count < 1 || index < 0 || index >= count)
+			throw new IllegalArgumentException("invalid shard " + index + " of " + count);
+		TreeMap<Long, Integer> points = new TreeMap<Long, Integer>();
+		for (int shard = 0; shard < count; shard++) {
+			for (int v = 0; v < VNODES; v++) {
+				points.put(hash("shard-" + shard + "-" + v), shard);
+			}
+		}
+		return new RingShard(index, points, "shard-" + index);
+	}
+
+	/**
+	 * Only the node running on this machine.
+	 */
+	public static RingShard localOnly(String id) {
+		return new RingShard(-1, null, id);
+	}
+
+	/**
+	 * A name for this shard, unique among the instances polling the ring.
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * The hosts of {@code hosts} this shard polls, in the same order.
+	 */
+	public List<String> select(List<String> hosts) {
+		List<String> selected = new ArrayList<String>();
+		for (String host : hosts) {
+			if (owns(host))
+				selected.add(host);
+		}
+		return selected;
+	}
+
+	private boolean owns(String host) {
+		if (points == null) {
+			try {
+				return JMXHelper.isLocalIP(InetAddress.getByName(host));
+			} catch (Exception e) {
+				LOGGER.debug("can't resolve " + host + ": " + e.getMessage());
+				return false;
+			}
+		}
+		Map.Entry<Long, Integer> owner = points.ceilingEntry(hash(host));
+		if (owner == null)
+			owner = points.firstEntry();
+		return owner.getValue() == index;
+	}
+
+	private static long hash(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(UTF8));
+			long h = 0;
+			for (int i = 0; i < 8; i++) {
+				h = (h << 8) | (digest[i] & 0xff);
+			}
+			return h;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return id;
+	}
+}
@@ -0,0 +1,65 @@
+package ar.com.threelegs.newrelic.util;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The members of a Cassandra ring as seen by one node, split into the nodes
+ * its gossiper considers live and the ones it considers unreachable, with the
+ * datacenter its snitch puts each of them in.
+ */
+public class RingTopology {
+
+	private final List<String> liveHosts;
+	private final List<String> unreachableHosts;
+	private final Map<String, String> datacenters;
+	private final String discoveredFrom;
+	private final long fetchedAt;
+
+	public RingTopology(List<String> liveHosts, List<String> unreachableHosts, String discoveredFrom) {
+		this(liveHosts, unreachableHosts, new HashMap<String, String>(), discoveredFrom);
+	}
+
+	public RingTopology(List<String> liveHosts, List<String> unreachableHosts, Map<String, String> datacenters, String discoveredFrom) {
+		this.liveHosts = Collections.unmodifiableList(liveHosts);
+		this.unreachableHosts = Collections.unmodifiableList(unreachableHosts);
+		this.datacenters = Collections.unmodifiableMap(datacenters);
+		this.discoveredFrom = discoveredFrom;
+		this.fetchedAt = System.currentTimeMillis();
+	}
+
+	public List<String> getLiveHosts() {
+		return liveHosts;
+	}
+
+	public List<String> getUnreachableHosts() {
+		return unreachableHosts;
+	}
+
+	/**
+	 * The datacenter of {@code host}, or {@code null} if the snitch didn't
+	 * say.
+	 */
+	public String getDatacenter(String host) {
+		return datacenters.get(host);
+	}
+
+	public int size() {
+		return liveHosts.size() + unreachableHosts.size();
+	}
+
+	public String getDiscoveredFrom() {
+		return discoveredFrom;
+	}
+
+	public long getFetchedAt() {
+		return fetchedAt;
+	}
+
+	@Override
+	public String toString() {
+		return "live=" + liveHosts + ", unreachable=" + unreachableHosts + " (from " + discoveredFrom + ")";
+	}
+}
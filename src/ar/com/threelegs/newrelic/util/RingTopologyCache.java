@@ -0,0 +1,94 @@
+package ar.com.threelegs.newrelic.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import ar.com.threelegs.newrelic.jmx.ConnectionException;
+
+import com.newrelic.metrics.publish.util.Logger;
+
+/**
+ * Caches the ring topology between poll cycles and only asks the ring again
+ * every {@code refreshInterval} millis. Discovery hosts are tried in order,
+ * followed by the members of the last known topology, so a single dead node
+ * can no longer take down discovery. When nobody answers, the last known
+ * topology keeps being used, and discovery is not tried again for another
+ * refresh interval.
+ */
+public class RingTopologyCache {
+
+	private static final Logger LOGGER = Logger.getLogger(RingTopologyCache.class);
+
+	private final List<String> discoveryHosts;
+	private final String jmxPort, username, password;
+	private final long refreshInterval;
+
+	private RingTopology topology;
+	private long attemptedAt;
+	private List<String> failedHosts = Collections.emptyList();
+
+	public RingTopologyCache(List<String> discoveryHosts, String jmxPort, String username, String password, long refreshInterval) {
+		this.discoveryHosts = new ArrayList<String>(discoveryHosts);
+		this.jmxPort = jmxPort;
+		this.username = username;
+		this.password = password;
+		this.refreshInterval = refreshInterval;
+	}
+
+	/**
+	 * Returns the cached topology, refreshing it first if the last refresh
+	 * was tried more than the refresh interval ago. Throws only if discovery fails and there is no
+	 * previous topology to fall back to.
+	 */
+	public synchronized RingTopology get() throws ConnectionException {
+		long now = System.currentTimeMillis();
+		if (topology != null && now - attemptedAt < refreshInterval)
+			return topology;
+		attemptedAt = now;
+
+		Set<String> candidates = new LinkedHashSet<String>(discoveryHosts);
+		if (topology != null)
+			candidates.addAll(topology.getLiveHosts());
+
+		List<String> failed = new ArrayList<String>();
+		ConnectionException lastFailure = null;
+		for (String host : candidates) {
+			try {
+				LOGGER.debug("getting ring topology from " + host);
+				RingTopology fresh = CassandraHelper.getRingTopology(host, jmxPort, username, password, topology);
+				if (fresh != null && !fresh.getLiveHosts().isEmpty()) {
+					topology = fresh;
+					failedHosts = failed;
+					LOGGER.debug("ring topology: " + fresh);
+					return topology;
+				}
+				LOGGER.warn("cassandra JMX on " + host + " returned an empty list of nodes, trying the next discovery host");
+			} catch (ConnectionException e) {
+				LOGGER.warn("unable to discover ring topology from " + host);
+				failed.add(host);
+				lastFailure = e;
+			}
+		}
+		failedHosts = failed;
+
+		if (topology != null) {
+			LOGGER.warn("ring discovery failed, using the last known topology from " + topology.getDiscoveredFrom());
+			return topology;
+		}
+		if (lastFailure != null)
+			throw lastFailure;
+
+		// every discovery host answered but none of them knew about the ring
+		return new RingTopology(new ArrayList<String>(discoveryHosts), new ArrayList<String>(), "configuration");
+	}
+
+	/**
+	 * Discovery hosts that could not be reached during the last refresh.
+	 */
+	public synchronized List<String> getFailedHosts() {
+		return failedHosts;
+	}
+}
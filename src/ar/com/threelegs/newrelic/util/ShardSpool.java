@@ -0,0 +1,174 @@
+package ar.com.threelegs.newrelic.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+import ar.com.threelegs.newrelic.MetricAggregator;
+
+import com.newrelic.metrics.publish.util.Logger;
+
+/**
+ * Hands the partial ring-wide aggregates of each shard to the instance that
+ * reports them, through files in a spool directory shared by the instances.
+ * <p>
+ * Every shard replaces its own file after each poll (written aside and
+ * renamed, so it is never read half-written). The reporting instance merges
+ * the files that are not older than {@code maxAge}; a shard that stopped
+ * writing simply drops out of the global aggregates.
+ */
+public class ShardSpool {
+
+	private static final Logger LOGGER = Logger.getLogger(ShardSpool.class);
+	private static final int VERSION = 2;
+	private static final String SUFFIX = ".partial";
+
+	private final File dir;
+	private final String prefix;
+	private final long maxAge;
+
+	public ShardSpool(File dir, String ring, long maxAge) {
+		this.dir = dir;
+		this.prefix = ring.replaceAll("[^A-Za-z0-9_-]", "_") + ".";
+		this.maxAge = maxAge;
+	}
+
+	/**
+	 * Publishes the partial aggregates of {@code shard}, by scope (the whole
+	 * ring, a datacenter...).
+	 */
+	public void write(String shard, Map<String, Partial> partials) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("can't create spool directory " + dir);
+		File file = fileFor(shard);
+		File tmp = new File(dir, "." + file.getName() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(VERSION);
+			out.writeLong(System.currentTimeMillis());
+			out.writeInt(partials.size());
+			for (Map.Entry<String, Partial> e : partials.entrySet()) {
+				Partial partial = e.getValue();
+				out.writeUTF(e.getKey());
+				out.writeInt(partial.hosts);
+				out.writeInt(partial.down);
+				out.writeInt(partial.timeouts);
+				partial.global.write(out);
+				writeBuckets(out, partial.reads.getBuckets());
+				writeBuckets(out, partial.writes.getBuckets());
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file))
+				throw new IOException("can't replace " + file);
+		}
+	}
+
+	/**
+	 * Merges the fresh partial aggregates of every shard but {@code self}
+	 * into {@code into}, scope by scope, and returns how many shards were
+	 * merged. Scopes this instance didn't see get a new partial of
+	 * {@code aggregator}.
+	 */
+	public int mergeOthers(String self, Map<String, Partial> into, MetricAggregator aggregator) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return 0;
+
+		int merged = 0;
+		long now = System.currentTimeMillis();
+		for (File file : files) {
+			String name = file.getName();
+			if (!name.startsWith(prefix) || !name.endsWith(SUFFIX) || file.equals(fileFor(self)))
+				continue;
+			if (now - file.lastModified() > maxAge) {
+				LOGGER.debug("ignoring stale shard aggregates " + file);
+				continue;
+			}
+			try {
+				if (read(file, into, aggregator, now))
+					merged++;
+			} catch (IOException e) {
+				LOGGER.warn("can't read shard aggregates " + file + ": " + e.getMessage());
+			}
+		}
+		return merged;
+	}
+
+	private boolean read(File file, Map<String, Partial> into, MetricAggregator aggregator, long now) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != VERSION)
+				throw new IOException("unknown format");
+			if (now - in.readLong() > maxAge)
+				return false;
+			int scopes = in.readInt();
+			for (int i = 0; i < scopes; i++) {
+				String scope = in.readUTF();
+				Partial partial = into.get(scope);
+				if (partial == null) {
+					partial = new Partial(0, 0, 0, aggregator.newAccumulator(), new LatencyHistogram(), new LatencyHistogram());
+					into.put(scope, partial);
+				}
+				partial.hosts += in.readInt();
+				partial.down += in.readInt();
+				partial.timeouts += in.readInt();
+				partial.global.read(in);
+				partial.reads.merge(new LatencyHistogram(readBuckets(in)));
+				partial.writes.merge(new LatencyHistogram(readBuckets(in)));
+			}
+			return true;
+		} finally {
+			in.close();
+		}
+	}
+
+	private File fileFor(String shard) {
+		return new File(dir, prefix + shard.replaceAll("[^A-Za-z0-9_.-]", "_") + SUFFIX);
+	}
+
+	private static void writeBuckets(DataOutputStream out, long[] buckets) throws IOException {
+		out.writeInt(buckets.length);
+		for (long b : buckets) {
+			out.writeLong(b);
+		}
+	}
+
+	private static long[] readBuckets(DataInputStream in) throws IOException {
+		long[] buckets = new long[in.readInt()];
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = in.readLong();
+		}
+		return buckets;
+	}
+
+	/**
+	 * What one shard contributes to the ring-wide metrics of a cycle.
+	 */
+	public static class Partial {
+		public int hosts;
+		public int down;
+		public int timeouts;
+		public final MetricAggregator.Accumulator global;
+		public final LatencyHistogram reads;
+		public final LatencyHistogram writes;
+
+		public Partial(int hosts, int down, int timeouts, MetricAggregator.Accumulator global, LatencyHistogram reads, LatencyHistogram writes) {
+			this.hosts = hosts;
+			this.down = down;
+			this.timeouts = timeouts;
+			this.global = global;
+			this.reads = reads;
+			this.writes = writes;
+		}
+	}
+}
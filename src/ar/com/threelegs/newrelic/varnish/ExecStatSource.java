@@ -0,0 +1,54 @@
+package ar.com.threelegs.newrelic.varnish;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Runs varnishstat once per read and parses its output as it streams out.
+ */
+public class ExecStatSource implements StatSource {
+
+	private final StatCommand command;
+	private volatile Process running;
+
+	public ExecStatSource(StatCommand command) {
+		this.command = command;
+	}
+
+	@Override
+	public int read(StatHandler handler) throws Exception {
+		Process p = command.start();
+		running = p;
+		InputStream in = p.getInputStream();
+		try {
+			int count;
+			if (command.isJson())
+				count = new StatJsonParser(new BufferedReader(new InputStreamReader(in, "UTF-8"))).parse(handler);
+			else
+				count = StatXmlParser.parse(new BufferedInputStream(in), handler);
+			p.waitFor();
+			return count;
+		} finally {
+			in.close();
+			p.destroy();
+			running = null;
+		}
+	}
+
+	/**
+	 * Kills a varnishstat that is still running, e.g. one that timed out.
+	 */
+	@Override
+	public void cancel() {
+		Process p = running;
+		if (p != null)
+			p.destroy();
+	}
+
+	@Override
+	public void close() {
+		cancel();
+	}
+}
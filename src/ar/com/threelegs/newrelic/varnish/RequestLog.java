@@ -0,0 +1,331 @@
+package ar.com.threelegs.newrelic.varnish;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ar.com.threelegs.newrelic.util.AtomicHistogram;
+
+import com.typesafe.config.Config;
+
+/**
+ * Request latencies from varnishncsa lines, recorded into one histogram for
+ * all requests, one per status class and one per value of the
+ * {@code backend} and {@code handling} fields, if the format has them.
+ * <p>
+ * The fields of a line are separated by spaces and named, in order, by
+ * {@code fields}: {@code status}, {@code latency}, {@code backend},
+ * {@code handling}, or anything else for a field to skip. Lines are parsed
+ * straight from the bytes read, without making strings of them; the names of
+ * backends and handlings are looked up by their bytes and only become strings
+ * the first time they are seen.
+ * <p>
+ * Lines are fed from one thread, while {@link #drain()} can be called from
+ * any other.
+ */
+public class RequestLog {
+
+	public static final String DEFAULT_FORMAT = "%s %D %{Varnish:handling}x";
+	public static final String[] DEFAULT_FIELDS = { "status", "latency", "handling" };
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int BUCKETS = 100;
+	private static final int MAX_NAMES = 256;
+	private static final byte SKIP = 0, STATUS = 1, LATENCY = 2, BACKEND = 3, HANDLING = 4;
+
+	private final byte[] roles;
+	private final long scale;
+	private final AtomicHistogram all = new AtomicHistogram(BUCKETS);
+	private final AtomicHistogram[] statuses = new AtomicHistogram[6];
+	private final NameTable backends = new NameTable();
+	private final NameTable handlings = new NameTable();
+
+	private byte[] carry = new byte[64 * 1024];
+	private int carried;
+	private boolean skipping;
+
+	/**
+	 * @param scale
+	 *            latencies are recorded in microseconds: 1 if the format
+	 *            prints them in microseconds ({@code %D}), 1000000 for
+	 *            seconds ({@code %{Varnish:time_firstbyte}x})
+	 */
+	public RequestLog(List<String> fields, long scale) {
+		this.roles = new byte[fields.size()];
+		for (int i = 0; i < roles.length; i++) {
+			String field = fields.get(i);
+			roles[i] = "status".equals(field) ? STATUS : "latency".equals(field) ? LATENCY : "backend".equals(field) ? BACKEND
+					: "handling".equals(field) ? HANDLING : SKIP;
+		}
+		this.scale = scale;
+		for (int i = 0; i < statuses.length; i++) {
+			statuses[i] = new AtomicHistogram(BUCKETS);
+		}
+	}
+
+	public static RequestLog fromConfig(Config config) {
+		List<String> fields = config.hasPath("ncsa_fields") ? config.getStringList("ncsa_fields") : Arrays.asList(DEFAULT_FIELDS);
+		String unit = config.hasPath("ncsa_latency_unit") ? config.getString("ncsa_latency_unit") : "us";
+		long scale = "s".equals(unit) ? 1000000 : "ms".equals(unit) ? 1000 : 1;
+		return new RequestLog(fields, scale);
+	}
+
+	/**
+	 * Reads lines until the end of {@code in}, e.g. to replay a recorded log.
+	 */
+	public void consume(InputStream in) throws IOException {
+		byte[] buffer = new byte[64 * 1024];
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			feed(buffer, 0, n);
+		}
+	}
+
+	/**
+	 * Records the lines in {@code length} bytes of {@code b}. A line cut at
+	 * the end is kept until the rest of it is fed; one longer than 64k is
+	 * dropped.
+	 */
+	public void feed(byte[] b, int offset, int length) {
+		int end = offset + length;
+		int start = offset;
+		for (int i = offset; i < end; i++) {
+			if (b[i] != '\n')
+				continue;
+			if (skipping) {
+				skipping = false;
+			} else if (carried > 0) {
+				if (append(b, start, i))
+					line(carry, 0, carried);
+				carried = 0;
+			} else {
+				line(b, start, i);
+			}
+			start = i + 1;
+		}
+		if (start < end && !skipping && !append(b, start, end)) {
+			carried = 0;
+			skipping = true;
+		}
+	}
+
+	private boolean append(byte[] b, int start, int end) {
+		int length = end - start;
+		if (carried + length > carry.length)
+			return false;
+		System.arraycopy(b, start, carry, carried, length);
+		carried += length;
+		return true;
+	}
+
+	/**
+	 * Records one line, without its line break. Lines without a status or a
+	 * latency are skipped.
+	 */
+	public void line(byte[] b, int start, int end) {
+		// ssh -t ends lines with CRLF
+		if (end > start && b[end - 1] == '\r')
+			end--;
+		int status = -1;
+		long latency = -1;
+		int backendStart = -1, backendEnd = -1, handlingStart = -1, handlingEnd = -1;
+
+		int field = 0;
+		int i = start;
+		while (i < end && field < roles.length) {
+			int fieldStart = i;
+			while (i < end && b[i] != ' ') {
+				i++;
+			}
+			switch (roles[field]) {
+			case STATUS:
+				status = parseStatus(b, fieldStart, i);
+				break;
+			case LATENCY:
+				latency = parseLatency(b, fieldStart, i);
+				break;
+			case BACKEND:
+				backendStart = fieldStart;
+				backendEnd = i;
+				break;
+			case HANDLING:
+				handlingStart = fieldStart;
+				handlingEnd = i;
+				break;
+			}
+			field++;
+			i++;
+		}
+		if (status < 0 || latency < 0)
+			return;
+
+		all.record(latency);
+		statuses[status / 100 < statuses.length ? status / 100 : 0].record(latency);
+		if (backendStart != -1)
+			record(backends, b, backendStart, backendEnd, latency);
+		if (handlingStart != -1)
+			record(handlings, b, handlingStart, handlingEnd, latency);
+	}
+
+	private static void record(NameTable table, byte[] b, int start, int end, long latency) {
+		// varnishncsa prints a dash for what the request doesn't have
+		if (end == start || (end - start == 1 && b[start] == '-'))
+			return;
+		AtomicHistogram histogram = table.get(b, start, end);
+		if (histogram != null)
+			histogram.record(latency);
+	}
+
+	private static int parseStatus(byte[] b, int start, int end) {
+		if (end - start != 3)
+			return -1;
+		int status = 0;
+		for (int i = start; i < end; i++) {
+			int digit = b[i] - '0';
+			if (digit < 0 || digit > 9)
+				return -1;
+			status = status * 10 + digit;
+		}
+		return status;
+	}
+
+	/**
+	 * A decimal number in the unit of the format, in microseconds.
+	 */
+	private long parseLatency(byte[] b, int start, int end) {
+		long whole = 0, fraction = 0, divisor = 1;
+		boolean point = false;
+		if (start == end)
+			return -1;
+		for (int i = start; i < end; i++) {
+			byte c = b[i];
+			if (c == '.' && !point) {
+				point = true;
+			} else if (c >= '0' && c <= '9') {
+				if (!point)
+					whole = whole * 10 + (c - '0');
+				else if (divisor < 1000000) {
+					fraction = fraction * 10 + (c - '0');
+					divisor *= 10;
+				}
+			} else {
+				return -1;
+			}
+		}
+		return whole * scale + fraction * scale / divisor;
+	}
+
+	/**
+	 * The requests recorded since the last call, by group: {@code all},
+	 * {@code status/<class>}, {@code backend/<name>} and
+	 * {@code handling/<name>}.
+	 */
+	public Map<String, AtomicHistogram.Interval> drain() {
+		Map<String, AtomicHistogram.Interval> drained = new LinkedHashMap<String, AtomicHistogram.Interval>();
+		drained.put("all", all.drain());
+		for (int i = 0; i < statuses.length; i++) {
+			AtomicHistogram.Interval interval = statuses[i].drain();
+			if (interval.count > 0)
+				drained.put("status/" + (i == 0 ? "other" : i + "xx"), interval);
+		}
+		backends.drain("backend/", drained);
+		handlings.drain("handling/", drained);
+		return drained;
+	}
+
+	/**
+	 * Histograms by name, looked up by the bytes of the name. Lookups don't
+	 * lock; the table is copied when a name is added, which is rare. Names
+	 * past {@link #MAX_NAMES} are dropped.
+	 */
+	private static class NameTable {
+		private volatile Entry[] entries = new Entry[64];
+		private int size;
+
+		AtomicHistogram get(byte[] b, int start, int end) {
+			int hash = hash(b, start, end);
+			Entry[] table = entries;
+			for (int i = hash & (table.length - 1);; i = (i + 1) & (table.length - 1)) {
+				Entry e = table[i];
+				if (e == null)
+					return add(b, start, end, hash);
+				if (e.hash == hash && e.matches(b, start, end))
+					return e.histogram;
+			}
+		}
+
+		private synchronized AtomicHistogram add(byte[] b, int start, int end, int hash) {
+			// it may have been added since the lookup
+			for (Entry e : entries) {
+				if (e != null && e.hash == hash && e.matches(b, start, end))
+					return e.histogram;
+			}
+			if (size >= MAX_NAMES)
+				return null;
+
+			Entry entry = new Entry(Arrays.copyOfRange(b, start, end), hash);
+			Entry[] table = new Entry[size * 2 + 2 > entries.length ? entries.length * 2 : entries.length];
+			for (Entry e : entries) {
+				if (e != null)
+					put(table, e);
+			}
+			put(table, entry);
+			size++;
+			entries = table;
+			return entry.histogram;
+		}
+
+		private static void put(Entry[] table, Entry entry) {
+			int i = entry.hash & (table.length - 1);
+			while (table[i] != null) {
+				i = (i + 1) & (table.length - 1);
+			}
+			table[i] = entry;
+		}
+
+		void drain(String prefix, Map<String, AtomicHistogram.Interval> drained) {
+			for (Entry e : entries) {
+				if (e == null)
+					continue;
+				AtomicHistogram.Interval interval = e.histogram.drain();
+				if (interval.count > 0)
+					drained.put(prefix + e.name, interval);
+			}
+		}
+
+		private static int hash(byte[] b, int start, int end) {
+			int hash = 0x811c9dc5;
+			for (int i = start; i < end; i++) {
+				hash = (hash ^ b[i]) * 0x01000193;
+			}
+			return hash ^ (hash >>> 16);
+		}
+	}
+
+	private static class Entry {
+		final byte[] key;
+		final int hash;
+		final String name;
+		final AtomicHistogram histogram = new AtomicHistogram(BUCKETS);
+
+		Entry(byte[] key, int hash) {
+			this.key = key;
+			this.hash = hash;
+			this.name = new String(key, UTF8);
+		}
+
+		boolean matches(byte[] b, int start, int end) {
+			if (end - start != key.length)
+				return false;
+			for (int i = 0; i < key.length; i++) {
+				if (key[i] != b[start + i])
+					return false;
+			}
+			return true;
+		}
+	}
+}
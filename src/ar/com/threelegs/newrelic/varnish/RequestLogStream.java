@@ -0,0 +1,156 @@
+package ar.com.threelegs.newrelic.varnish;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.newrelic.metrics.publish.util.Logger;
+
+/**
+ * Feeds a {@link RequestLog} on a background thread, for as long as the
+ * plugin runs: either from a varnishncsa kept running (over ssh for remote
+ * instances), or by following a log file varnishncsa writes.
+ * <p>
+ * A varnishncsa that dies is started again, backing off up to a minute. A
+ * followed file is read from its end when the stream starts, and from its
+ * beginning when it is rotated (replaced or truncated).
+ */
+public class RequestLogStream implements Runnable {
+
+	private static final Logger LOGGER = Logger.getLogger(RequestLogStream.class);
+	private static final long MIN_BACKOFF = TimeUnit.SECONDS.toMillis(5);
+	private static final long MAX_BACKOFF = TimeUnit.MINUTES.toMillis(1);
+	private static final long TAIL_INTERVAL = 250;
+
+	private final RequestLog log;
+	private final List<String> command;
+	private final File file;
+
+	private Thread thread;
+	private volatile Process process;
+	private volatile boolean closed;
+
+	private RequestLogStream(RequestLog log, List<String> command, File file) {
+		this.log = log;
+		this.command = command;
+		this.file = file;
+	}
+
+	/**
+	 * A stream running {@code command}, e.g. {@link StatCommand#buildNcsa}.
+	 */
+	public static RequestLogStream ofCommand(RequestLog log, List<String> command) {
+		return new RequestLogStream(log, command, null);
+	}
+
+	/**
+	 * A stream following {@code file}.
+	 */
+	public static RequestLogStream ofFile(RequestLog log, File file) {
+		return new RequestLogStream(log, null, file);
+	}
+
+	public synchronized void start() {
+		if (thread != null)
+			return;
+		thread = new Thread(this, "varnishncsa-" + this);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void run() {
+		long backoff = MIN_BACKOFF;
+		boolean fromStart = false;
+		while (!closed) {
+			long started = System.currentTimeMillis();
+			try {
+				if (file != null) {
+					// the file was rotated, the new one is read from its start right away
+					follow(fromStart);
+					fromStart = true;
+					backoff = MIN_BACKOFF;
+					continue;
+				} else {
+					LOGGER.debug("starting " + this);
+					Process p = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+					process = p;
+					InputStream in = p.getInputStream();
+					try {
+						log.consume(in);
+					} finally {
+						in.close();
+						p.destroy();
+					}
+					if (!closed)
+						LOGGER.info(this + " ended, restarting it");
+				}
+			} catch (Exception e) {
+				if (!closed)
+					LOGGER.warn("reading requests from " + this + " failed: " + e.getMessage());
+			}
+			// whatever comes next is new: a rotated file, or a new process
+			fromStart = true;
+
+			if (System.currentTimeMillis() - started > MAX_BACKOFF)
+				backoff = MIN_BACKOFF;
+			try {
+				Thread.sleep(backoff);
+			} catch (InterruptedException e) {
+				return;
+			}
+			backoff = Math.min(backoff * 2, MAX_BACKOFF);
+		}
+	}
+
+	/**
+	 * Reads what is appended to the file until it is rotated or the stream
+	 * is closed.
+	 */
+	private void follow(boolean fromStart) throws IOException, InterruptedException {
+		Object key = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long position = fromStart ? 0 : raf.length();
+			raf.seek(position);
+			LOGGER.debug("following " + file + " from offset " + position);
+			byte[] buffer = new byte[64 * 1024];
+			while (!closed) {
+				int n = raf.read(buffer);
+				if (n > 0) {
+					log.feed(buffer, 0, n);
+					position += n;
+					continue;
+				}
+				Thread.sleep(TAIL_INTERVAL);
+				if (!file.exists() || file.length() < position)
+					return;
+				Object current = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+				if (key != null && !key.equals(current))
+					return;
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	public void close() {
+		closed = true;
+		Process p = process;
+		if (p != null)
+			p.destroy();
+		Thread t = thread;
+		if (t != null)
+			t.interrupt();
+	}
+
+	@Override
+	public String toString() {
+		return file != null ? file.getPath() : command.toString();
+	}
+}
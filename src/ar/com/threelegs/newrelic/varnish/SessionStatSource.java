@@ -0,0 +1,258 @@
+package ar.com.threelegs.newrelic.varnish;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.newrelic.metrics.publish.util.Logger;
+
+/**
+ * Keeps one varnishstat running (over one ssh session for remote instances)
+ * that prints a snapshot every {@code interval} seconds ({@code -w}), and
+ * reads the snapshots off its output on a background thread. Each
+ * {@link #read} hands over the newest snapshot not read yet.
+ * <p>
+ * When the process dies it is started again, backing off up to a minute, for
+ * as long as it takes: a host that can't be reached, or an ssh that fails, is
+ * retried. Only a varnishstat that keeps exiting successfully without printing
+ * anything (Varnish 5 and later dropped {@code -w}) makes the source fall back
+ * to one run per read.
+ */
+public class SessionStatSource implements StatSource, Runnable {
+
+	private static final Logger LOGGER = Logger.getLogger(SessionStatSource.class);
+	private static final long FIRST_SNAPSHOT_WAIT = TimeUnit.SECONDS.toMillis(30);
+	private static final long SNAPSHOT_WAIT = TimeUnit.SECONDS.toMillis(5);
+	private static final long MIN_BACKOFF = TimeUnit.SECONDS.toMillis(5);
+	private static final long MAX_BACKOFF = TimeUnit.MINUTES.toMillis(1);
+	private static final int MAX_EMPTY_RUNS = 3;
+
+	private final StatCommand command;
+	private final int interval;
+	private final ExecStatSource fallback;
+
+	private Thread thread;
+	private volatile Process process;
+	private volatile boolean closed;
+	private volatile boolean unsupported;
+	private List<String[]> latest;
+	private long published;
+	private long consumed;
+
+	public SessionStatSource(StatCommand command, int interval) {
+		this.command = command;
+		this.interval = interval;
+		this.fallback = new ExecStatSource(command);
+	}
+
+	@Override
+	public int read(StatHandler handler) throws Exception {
+		if (unsupported)
+			return fallback.read(handler);
+
+		List<String[]> snapshot;
+		synchronized (this) {
+			if (thread == null) {
+				thread = new Thread(this, "varnishstat-" + command);
+				thread.setDaemon(true);
+				thread.start();
+			}
+			long wait = consumed == 0 ? FIRST_SNAPSHOT_WAIT : SNAPSHOT_WAIT;
+			long until = System.currentTimeMillis() + wait;
+			while (published == consumed && !unsupported && wait > 0) {
+				wait(wait);
+				wait = until - System.currentTimeMillis();
+			}
+			if (published == consumed) {
+				if (unsupported)
+					return fallback.read(handler);
+				LOGGER.debug("no new varnishstat snapshot from " + command + " since the last poll");
+				return 0;
+			}
+			consumed = published;
+			snapshot = latest;
+		}
+
+		for (String[] s : snapshot) {
+			handler.stat(s[0], s[1], s[2], s[3], s[4], s[5]);
+		}
+		return snapshot.size();
+	}
+
+	@Override
+	public void run() {
+		long backoff = MIN_BACKOFF;
+		int emptyRuns = 0;
+		while (!closed) {
+			int snapshots = 0;
+			boolean cleanExit = false;
+			try {
+				LOGGER.debug("starting varnishstat session for " + command);
+				Process p = command.start("-w", String.valueOf(interval));
+				process = p;
+				snapshots = readSnapshots(p.getInputStream());
+				cleanExit = p.waitFor(SNAPSHOT_WAIT, TimeUnit.MILLISECONDS) && p.exitValue() == 0;
+				p.destroy();
+				if (!closed)
+					LOGGER.info("varnishstat session for " + command + " ended after " + snapshots + " snapshot(s), restarting it");
+			} catch (Exception e) {
+				if (!closed)
+					LOGGER.warn("varnishstat session for " + command + " failed: " + e.getMessage());
+			}
+
+			if (snapshots > 0) {
+				backoff = MIN_BACKOFF;
+				emptyRuns = 0;
+			} else if (cleanExit && ++emptyRuns >= MAX_EMPTY_RUNS) {
+				LOGGER.warn("varnishstat for " + command + " keeps exiting without output, it may not support -w; running it once per poll instead");
+				synchronized (this) {
+					unsupported = true;
+					notifyAll();
+				}
+				return;
+			}
+
+			try {
+				Thread.sleep(backoff);
+			} catch (InterruptedException e) {
+				return;
+			}
+			backoff = Math.min(backoff * 2, MAX_BACKOFF);
+		}
+	}
+
+	private int readSnapshots(InputStream in) throws Exception {
+		int snapshots = 0;
+		try {
+			if (command.isJson()) {
+				StatJsonParser parser = new StatJsonParser(new BufferedReader(new InputStreamReader(in, "UTF-8")));
+				while (true) {
+					Collector collector = new Collector();
+					if (parser.parse(collector) == -1)
+						break;
+					publish(collector.stats);
+					snapshots++;
+				}
+			} else {
+				XmlDocumentStream documents = new XmlDocumentStream(new BufferedInputStream(in));
+				while (documents.nextDocument()) {
+					Collector collector = new Collector();
+					StatXmlParser.parse(documents, collector);
+					publish(collector.stats);
+					snapshots++;
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return snapshots;
+	}
+
+	private synchronized void publish(List<String[]> stats) {
+		latest = stats;
+		published++;
+		notifyAll();
+	}
+
+	/**
+	 * Only the run-once fallback can be stuck: waiting for a snapshot is
+	 * bounded, and the session is kept for the next read.
+	 */
+	@Override
+	public void cancel() {
+		fallback.cancel();
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		Process p = process;
+		if (p != null)
+			p.destroy();
+		fallback.close();
+	}
+
+	private static class Collector implements StatHandler {
+		final List<String[]> stats = new ArrayList<String[]>();
+
+		@Override
+		public void stat(String type, String ident, String name, String description, String value, String flag) {
+			stats.add(new String[] { type, ident, name, description, value, flag });
+		}
+
+		@Override
+		public void counter(String type, String ident, String name, String description, long value, String flag) {
+			stat(type, ident, name, description, String.valueOf(value), flag);
+		}
+	}
+
+	/**
+	 * Presents one {@code <varnishstat>} document at a time out of a stream
+	 * carrying several: reads end right after the closing tag.
+	 */
+	static class XmlDocumentStream extends InputStream {
+		private static final byte[] END = "</varnishstat>".getBytes();
+
+		private final InputStream in;
+		private int matched;
+		private boolean ended = true;
+
+		XmlDocumentStream(InputStream in) {
+			this.in = in.markSupported() ? in : new BufferedInputStream(in);
+		}
+
+		/**
+		 * Moves to the next document, skipping the whitespace before it, and
+		 * returns false at the end of the stream.
+		 */
+		boolean nextDocument() throws IOException {
+			while (true) {
+				in.mark(1);
+				int c = in.read();
+				if (c == -1)
+					return false;
+				if (!Character.isWhitespace(c)) {
+					in.reset();
+					break;
+				}
+			}
+			ended = false;
+			matched = 0;
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (ended)
+				return -1;
+			int c = in.read();
+			if (c == -1) {
+				ended = true;
+				return -1;
+			}
+			matched = c == END[matched] ? matched + 1 : (c == END[0] ? 1 : 0);
+			if (matched == END.length)
+				ended = true;
+			return c;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (ended)
+				return -1;
+			int n = 0;
+			while (n < len && !ended) {
+				int c = read();
+				if (c == -1)
+					break;
+				b[off + n++] = (byte) c;
+			}
+			return n == 0 ? -1 : n;
+		}
+	}
+}
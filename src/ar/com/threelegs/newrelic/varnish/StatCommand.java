@@ -0,0 +1,128 @@
+package ar.com.threelegs.newrelic.varnish;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.typesafe.config.Config;
+
+/**
+ * The varnishstat command line for an instance, as an argument list for
+ * {@link ProcessBuilder}: run locally, or over ssh when a {@code user} is
+ * configured.
+ * <p>
+ * With {@code multiplex}, ssh keeps one master connection per host open in
+ * the background (OpenSSH {@code ControlMaster}), so only the first run pays
+ * for the key exchange and authentication.
+ */
+public class StatCommand {
+
+	private final String user, host, port, instance;
+	private final boolean json;
+	private final boolean multiplex;
+
+	public StatCommand(String user, String host, String port, String instance, boolean json, boolean multiplex) {
+		this.user = user;
+		this.host = host;
+		this.port = port;
+		this.instance = instance;
+		this.json = json;
+		this.multiplex = multiplex;
+	}
+
+	public static StatCommand fromConfig(Config config) {
+		return new StatCommand(config.hasPath("user") ? config.getString("user") : null, config.hasPath("host") ? config.getString("host") : null,
+				config.hasPath("port") ? config.getString("port") : null, config.hasPath("instance") ? config.getString("instance") : null,
+				config.hasPath("format") && "json".equals(config.getString("format")),
+				config.hasPath("session") && "multiplex".equals(config.getString("session")));
+	}
+
+	public boolean isJson() {
+		return json;
+	}
+
+	public boolean isRemote() {
+		return user != null;
+	}
+
+	public String getInstance() {
+		return instance;
+	}
+
+	/**
+	 * The command printing one snapshot, followed by {@code extra} varnishstat
+	 * arguments.
+	 */
+	public List<String> build(String... extra) {
+		List<String> command = remote();
+		command.add("varnishstat");
+		if (json) {
+			command.add("-j");
+		} else {
+			command.add("-1");
+			command.add("-x");
+		}
+		if (instance != null) {
+			command.add("-n");
+			command.add(instance);
+		}
+		command.addAll(Arrays.asList(extra));
+		return command;
+	}
+
+	/**
+	 * The command printing one line per request, in {@code format}.
+	 */
+	public List<String> buildNcsa(String format) {
+		List<String> command = remote();
+		command.add("varnishncsa");
+		command.add("-F");
+		// ssh hands the command to a shell as one line
+		command.add(user != null ? "'" + format.replace("'", "'\\''") + "'" : format);
+		if (instance != null) {
+			command.add("-n");
+			command.add(instance);
+		}
+		return command;
+	}
+
+	/**
+	 * The ssh command line the command runs behind, if the instance is
+	 * remote.
+	 */
+	private List<String> remote() {
+		List<String> command = new ArrayList<String>();
+		if (user != null) {
+			command.add("ssh");
+			command.add("-t");
+			if (port != null) {
+				command.add("-p");
+				command.add(port);
+			}
+			if (multiplex) {
+				command.add("-o");
+				command.add("ControlMaster=auto");
+				command.add("-o");
+				command.add("ControlPath=" + new File(System.getProperty("java.io.tmpdir"), "newrelic-varnish-%r@%h:%p").getPath());
+				command.add("-o");
+				command.add("ControlPersist=10m");
+			}
+			command.add(user + "@" + host);
+		}
+		return command;
+	}
+
+	/**
+	 * Starts the command with stderr going to the plugin's own.
+	 */
+	public Process start(String... extra) throws IOException {
+		return new ProcessBuilder(build(extra)).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+	}
+
+	@Override
+	public String toString() {
+		return (user != null ? user + "@" + host + ":" : "") + (instance != null ? instance : "default");
+	}
+}
@@ -0,0 +1,166 @@
+package ar.com.threelegs.newrelic.varnish;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.typesafe.config.Config;
+
+/**
+ * Decides which counters are reported, from the {@code include} and
+ * {@code exclude} globs of plugin.json, before anything else is done with
+ * them. A counter is reported if it matches an include (or there are none)
+ * and no exclude.
+ * <p>
+ * Globs are matched against the name varnishstat shows, e.g.
+ * {@code MAIN.cache_hit}, {@code VBE.boot.default.happy}, or
+ * {@code cache_hit} for Varnish 3: {@code *} matches any run of characters,
+ * dots included, and {@code ?} any one character. The globs are compiled
+ * into a trie of their literal prefixes, so a name is walked once and only
+ * the globs sharing its prefix are tried on the rest.
+ * <p>
+ * Not thread safe: each instance has its own filter.
+ */
+public class StatFilter {
+
+	private final Node include;
+	private final Node exclude;
+	private char[] buffer = new char[128];
+
+	public StatFilter(List<String> include, List<String> exclude) {
+		this.include = compile(include);
+		this.exclude = compile(exclude);
+	}
+
+	public static StatFilter fromConfig(Config config) {
+		List<String> include = config.hasPath("include") ? config.getStringList("include") : null;
+		List<String> exclude = config.hasPath("exclude") ? config.getStringList("exclude") : null;
+		return new StatFilter(include, exclude);
+	}
+
+	/**
+	 * Whether everything passes, so that there is no point in asking.
+	 */
+	public boolean isEmpty() {
+		return include == null && exclude == null;
+	}
+
+	public boolean accepts(String type, String ident, String name) {
+		if (isEmpty())
+			return true;
+
+		// <type>.<ident>.<name>, without making a string of it
+		int length = 0;
+		if (type != null)
+			length = append(append(length, type), ".");
+		if (ident != null)
+			length = append(append(length, ident), ".");
+		length = append(length, name);
+
+		return (include == null || matches(include, buffer, length)) && (exclude == null || !matches(exclude, buffer, length));
+	}
+
+	private int append(int length, String s) {
+		int end = length + s.length();
+		if (end > buffer.length)
+			buffer = Arrays.copyOf(buffer, Math.max(end, buffer.length * 2));
+		s.getChars(0, s.length(), buffer, length);
+		return end;
+	}
+
+	private static Node compile(List<String> globs) {
+		if (globs == null || globs.isEmpty())
+			return null;
+		Node root = new Node();
+		for (String glob : globs) {
+			int wildcard = 0;
+			while (wildcard < glob.length() && glob.charAt(wildcard) != '*' && glob.charAt(wildcard) != '?') {
+				wildcard++;
+			}
+			Node node = root;
+			for (int i = 0; i < wildcard; i++) {
+				node = node.add(glob.charAt(i));
+			}
+			node.addRest(glob.substring(wildcard).toCharArray());
+		}
+		return root;
+	}
+
+	private static boolean matches(Node root, char[] name, int length) {
+		Node node = root;
+		int i = 0;
+		while (true) {
+			if (node.rests != null) {
+				for (char[] rest : node.rests) {
+					if (glob(rest, name, i, length))
+						return true;
+				}
+			}
+			if (i == length)
+				return false;
+			node = node.child(name[i++]);
+			if (node == null)
+				return false;
+		}
+	}
+
+	/**
+	 * Matches {@code glob} against {@code name} from {@code from}, going back
+	 * to the last {@code *} on a mismatch.
+	 */
+	static boolean glob(char[] glob, char[] name, int from, int length) {
+		int g = 0, n = from;
+		int star = -1, starMatch = 0;
+		while (n < length) {
+			if (g < glob.length && (glob[g] == '?' || glob[g] == name[n])) {
+				g++;
+				n++;
+			} else if (g < glob.length && glob[g] == '*') {
+				star = g++;
+				starMatch = n;
+			} else if (star != -1) {
+				g = star + 1;
+				n = ++starMatch;
+			} else {
+				return false;
+			}
+		}
+		while (g < glob.length && glob[g] == '*') {
+			g++;
+		}
+		return g == glob.length;
+	}
+
+	private static class Node {
+		char[] keys = new char[0];
+		Node[] children = new Node[0];
+		// what is left of the globs whose literal prefix ends here
+		List<char[]> rests;
+
+		Node child(char c) {
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] == c)
+					return children[i];
+			}
+			return null;
+		}
+
+		Node add(char c) {
+			Node child = child(c);
+			if (child == null) {
+				child = new Node();
+				keys = Arrays.copyOf(keys, keys.length + 1);
+				children = Arrays.copyOf(children, children.length + 1);
+				keys[keys.length - 1] = c;
+				children[children.length - 1] = child;
+			}
+			return child;
+		}
+
+		void addRest(char[] rest) {
+			if (rests == null)
+				rests = new ArrayList<char[]>();
+			rests.add(rest);
+		}
+	}
+}
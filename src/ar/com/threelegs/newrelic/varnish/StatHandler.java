@@ -0,0 +1,18 @@
+package ar.com.threelegs.newrelic.varnish;
+
+/**
+ * Receives the counters of one varnishstat snapshot, one call per counter.
+ * Fields varnishstat doesn't print are {@code null}.
+ */
+public interface StatHandler {
+
+	/**
+	 * A counter read from varnishstat output.
+	 */
+	void stat(String type, String ident, String name, String description, String value, String flag) throws Exception;
+
+	/**
+	 * A counter read in place from shared memory, already a number.
+	 */
+	void counter(String type, String ident, String name, String description, long value, String flag) throws Exception;
+}
@@ -0,0 +1,227 @@
+package ar.com.threelegs.newrelic.varnish;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ar.com.threelegs.newrelic.Metric;
+import ar.com.threelegs.newrelic.util.AtomicHistogram;
+
+import com.newrelic.metrics.publish.util.Logger;
+import com.typesafe.config.Config;
+
+/**
+ * One Varnish instance: where its counters are read from, which of them are
+ * reported, and the schema turning them into metrics. Besides the metrics,
+ * each poll keeps the raw counters that are summed over a fleet of
+ * instances.
+ * <p>
+ * With {@code ncsa} or {@code ncsa_log}, the requests varnishncsa logs are
+ * recorded as they happen, and each poll also reports their latency
+ * percentiles and counts since the previous one.
+ * <p>
+ * An instance is polled by one thread at a time: {@link #tryAcquire} fails
+ * while a previous poll, e.g. one that timed out, is still running.
+ */
+public class StatInstance {
+
+	private static final Logger LOGGER = Logger.getLogger(StatInstance.class);
+	private static final int DEFAULT_SESSION_INTERVAL = 60;
+
+	// counters kept for the fleet-wide metrics, by id
+	public static final int CACHE_HIT = 0;
+	public static final int CACHE_MISS = 1;
+	public static final int BACKEND_FAIL = 2;
+	public static final int COUNTERS = 3;
+	private static final List<String> COUNTER_NAMES = Arrays.asList("cache_hit", "cache_miss", "backend_fail");
+
+	private final String label;
+	private final StatFilter filter;
+	private final StatSchema schema;
+	private final StatSource source;
+	private final String prefix;
+	private RequestLog requests;
+	private RequestLogStream stream;
+	private final AtomicBoolean busy = new AtomicBoolean();
+
+	public StatInstance(String label, String prefix, StatFilter filter, StatSchema schema, StatSource source) {
+		this.label = label;
+		this.prefix = prefix;
+		this.filter = filter;
+		this.schema = schema;
+		this.source = source;
+	}
+
+	/**
+	 * The instance configured by {@code config}, reporting its metrics under
+	 * {@code prefix}.
+	 */
+	public static StatInstance fromConfig(Config config, String label, String prefix) {
+		StatCommand command = StatCommand.fromConfig(config);
+		StatSource source;
+		if (config.hasPath("session") && "persistent".equals(config.getString("session")))
+			source = new SessionStatSource(command, config.hasPath("session_interval") ? config.getInt("session_interval") : DEFAULT_SESSION_INTERVAL);
+		else
+			source = new ExecStatSource(command);
+
+		// a local instance is read straight from its shared memory when possible
+		if (!command.isRemote() && (!config.hasPath("vsm") || config.getBoolean("vsm"))) {
+			File vsm = config.hasPath("vsm_file") ? new File(config.getString("vsm_file")) : VsmStatSource.defaultFile(command.getInstance());
+			if (vsm.canRead()) {
+				LOGGER.info("reading " + label + " from " + vsm);
+				source = new VsmStatSource(vsm, source);
+			} else {
+				LOGGER.debug("can't read " + vsm + ", running varnishstat for " + label);
+			}
+		}
+
+		StatInstance instance = new StatInstance(label, prefix, StatFilter.fromConfig(config), StatSchema.fromConfig(config, prefix), source);
+
+		RequestLogStream stream = null;
+		RequestLog requests = RequestLog.fromConfig(config);
+		if (config.hasPath("ncsa_log"))
+			stream = RequestLogStream.ofFile(requests, new File(config.getString("ncsa_log")));
+		else if (config.hasPath("ncsa") && config.getBoolean("ncsa"))
+			stream = RequestLogStream.ofCommand(requests, command.buildNcsa(config.hasPath("ncsa_format") ? config.getString("ncsa_format")
+					: RequestLog.DEFAULT_FORMAT));
+		if (stream != null) {
+			LOGGER.info("recording the requests of " + label + " from " + stream);
+			instance.record(requests, stream);
+		}
+		return instance;
+	}
+
+	/**
+	 * Starts recording the requests {@code stream} feeds to {@code requests}.
+	 */
+	public void record(RequestLog requests, RequestLogStream stream) {
+		this.requests = requests;
+		this.stream = stream;
+		stream.start();
+	}
+
+	public String getLabel() {
+		return label;
+	}
+
+	public boolean tryAcquire() {
+		return busy.compareAndSet(false, true);
+	}
+
+	public void release() {
+		busy.set(false);
+	}
+
+	/**
+	 * Reads the counters of the instance, one metric per counter.
+	 */
+	public Snapshot poll() throws Exception {
+		Snapshot snapshot = new Snapshot();
+		read(snapshot);
+		return snapshot;
+	}
+
+	/**
+	 * Like {@link #poll}, keeping what was read before a failure in
+	 * {@code snapshot}.
+	 */
+	public void read(final Snapshot snapshot) throws Exception {
+		if (requests != null)
+			addLatencies(snapshot);
+
+		int count = source.read(new StatHandler() {
+			@Override
+			public void stat(String type, String ident, String name, String description, String value, String flag) throws Exception {
+				Number parsed = StatSchema.parseValue(value);
+				snapshot.keep(type, ident, name, parsed);
+				// filtered counters, and fields without a value, never get a metric name or rate state
+				if (parsed == null || !filter.accepts(type, ident, name))
+					return;
+				StatSchema.Counter counter = schema.counter(type, ident, name, description, flag);
+				snapshot.add(counter.metricName, counter.unit, counter.value(parsed));
+			}
+
+			@Override
+			public void counter(String type, String ident, String name, String description, long value, String flag) throws Exception {
+				snapshot.keep(type, ident, name, value);
+				if (!filter.accepts(type, ident, name))
+					return;
+				StatSchema.Counter counter = schema.counter(type, ident, name, description, flag);
+				snapshot.add(counter.metricName, counter.unit, counter.value(value));
+			}
+		});
+
+		// a poll without a snapshot says nothing about which counters are gone
+		if (count > 0) {
+			int expired = schema.endCycle();
+			if (expired > 0)
+				LOGGER.debug("forgot " + expired + " counters " + label + " no longer has");
+		}
+	}
+
+	private void addLatencies(Snapshot snapshot) {
+		for (Map.Entry<String, AtomicHistogram.Interval> e : requests.drain().entrySet()) {
+			String name = prefix + "Latency/" + e.getKey() + "/";
+			AtomicHistogram.Interval interval = e.getValue();
+			snapshot.add(name + "Requests", "requests", interval.count);
+			if (interval.count > 0) {
+				// recorded in microseconds
+				snapshot.add(name + "p50", "millis", interval.percentile(0.5) / 1000.0);
+				snapshot.add(name + "p99", "millis", interval.percentile(0.99) / 1000.0);
+				snapshot.add(name + "Max", "millis", interval.max / 1000.0);
+			}
+		}
+	}
+
+	/**
+	 * Stops a poll that timed out.
+	 */
+	public void cancel() {
+		source.cancel();
+	}
+
+	public void close() {
+		if (stream != null)
+			stream.close();
+		source.close();
+	}
+
+	@Override
+	public String toString() {
+		return label;
+	}
+
+	public static class Snapshot {
+		public final List<Metric> metrics = new ArrayList<Metric>();
+		private final Number[] counters = new Number[COUNTERS];
+
+		void add(String metricName, String unit, Number value) {
+			metrics.add(new Metric(metricName, unit, value));
+		}
+
+		/**
+		 * Keeps the raw value of a fleet counter, whether it is reported or
+		 * not.
+		 */
+		void keep(String type, String ident, String name, Number raw) {
+			int id = idOf(type, ident, name);
+			if (id != -1)
+				counters[id] = raw;
+		}
+
+		private static int idOf(String type, String ident, String name) {
+			return ident == null && (type == null || "MAIN".equals(type)) ? COUNTER_NAMES.indexOf(name) : -1;
+		}
+
+		/**
+		 * The raw value of one of the fleet counters, or {@code null} if the
+		 * instance doesn't have it.
+		 */
+		public Number counter(int id) {
+			return counters[id];
+		}
+	}
+}
@@ -0,0 +1,240 @@
+package ar.com.threelegs.newrelic.varnish;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Streams the output of {@code varnishstat -j} (Varnish 4 and later): one
+ * JSON object per snapshot, with one member per counter, named like
+ * {@code MAIN.cache_hit} or {@code VBE.boot.default.happy}. Since Varnish 6.5
+ * the counters are nested under {@code counters}.
+ * <p>
+ * Only what varnishstat prints is supported: objects, strings, numbers and
+ * literals, read one character at a time from the stream. Reading stops right
+ * after the snapshot's closing brace, so a stream carrying several snapshots
+ * can be parsed one call at a time.
+ */
+public class StatJsonParser {
+
+	private final Reader in;
+	private int next = -2;
+	private final StringBuilder buffer = new StringBuilder();
+
+	public StatJsonParser(Reader in) {
+		this.in = in;
+	}
+
+	/**
+	 * Parses one snapshot and returns the number of stats read, or -1 if the
+	 * stream ended before it started.
+	 */
+	public int parse(StatHandler handler) throws Exception {
+		if (skipWhitespace() == -1)
+			return -1;
+		expect('{');
+		int count = 0;
+		if (skipWhitespace() == '}') {
+			read();
+			return 0;
+		}
+		do {
+			String key = readString();
+			expect(':');
+			if (skipWhitespace() == '{') {
+				if ("counters".equals(key))
+					count += parseCounters(handler);
+				else if (parseCounter(key, handler))
+					count++;
+			} else {
+				skipValue();
+			}
+		} while (separator('}'));
+		return count;
+	}
+
+	private int parseCounters(StatHandler handler) throws Exception {
+		expect('{');
+		int count = 0;
+		if (skipWhitespace() == '}') {
+			read();
+			return 0;
+		}
+		do {
+			String key = readString();
+			expect(':');
+			if (skipWhitespace() == '{') {
+				if (parseCounter(key, handler))
+					count++;
+			} else {
+				skipValue();
+			}
+		} while (separator('}'));
+		return count;
+	}
+
+	private boolean parseCounter(String key, StatHandler handler) throws Exception {
+		String type = null, ident = null, description = null, value = null, flag = null;
+		expect('{');
+		if (skipWhitespace() != '}') {
+			do {
+				String field = readString();
+				expect(':');
+				if ("value".equals(field))
+					value = readScalar();
+				else if ("type".equals(field))
+					type = readScalar();
+				else if ("ident".equals(field))
+					ident = readScalar();
+				else if ("description".equals(field))
+					description = readScalar();
+				else if ("flag".equals(field))
+					flag = readScalar();
+				else
+					skipValue();
+			} while (separator('}'));
+		} else {
+			read();
+		}
+		if (value == null)
+			return false;
+
+		// the member name is <type>[.<ident>].<name>
+		int first = key.indexOf('.');
+		int last = key.lastIndexOf('.');
+		String name = last != -1 ? key.substring(last + 1) : key;
+		if (type == null && first != -1)
+			type = key.substring(0, first);
+		if (ident == null && first != last)
+			ident = key.substring(first + 1, last);
+
+		handler.stat(type, ident, name, description, value, flag);
+		return true;
+	}
+
+	/**
+	 * After a member: true if another one follows, false if {@code end}
+	 * closed the object.
+	 */
+	private boolean separator(char end) throws IOException {
+		int c = skipWhitespace();
+		read();
+		if (c == ',')
+			return true;
+		if (c == end)
+			return false;
+		throw new IOException("expected ',' or '" + end + "' but got " + describe(c));
+	}
+
+	private String readScalar() throws IOException {
+		int c = skipWhitespace();
+		if (c == '"')
+			return readString();
+		if (c == '{' || c == '[') {
+			skipValue();
+			return null;
+		}
+		buffer.setLength(0);
+		while ((c = peek()) != -1 && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c)) {
+			buffer.append((char) read());
+		}
+		String literal = buffer.toString();
+		return "null".equals(literal) ? null : literal;
+	}
+
+	private String readString() throws IOException {
+		skipWhitespace();
+		expect('"');
+		buffer.setLength(0);
+		int c;
+		while ((c = read()) != '"') {
+			if (c == -1)
+				throw new IOException("unterminated string");
+			if (c == '\\') {
+				c = read();
+				switch (c) {
+				case 'n':
+					buffer.append('\n');
+					break;
+				case 't':
+					buffer.append('\t');
+					break;
+				case 'r':
+					buffer.append('\r');
+					break;
+				case 'b':
+					buffer.append('\b');
+					break;
+				case 'f':
+					buffer.append('\f');
+					break;
+				case 'u':
+					char[] hex = new char[4];
+					for (int i = 0; i < 4; i++) {
+						hex[i] = (char) read();
+					}
+					buffer.append((char) Integer.parseInt(new String(hex), 16));
+					break;
+				default:
+					buffer.append((char) c);
+				}
+			} else {
+				buffer.append((char) c);
+			}
+		}
+		return buffer.toString();
+	}
+
+	private void skipValue() throws IOException {
+		int c = skipWhitespace();
+		if (c == '"') {
+			readString();
+		} else if (c == '{' || c == '[') {
+			char end = c == '{' ? '}' : ']';
+			read();
+			if (skipWhitespace() == end) {
+				read();
+				return;
+			}
+			do {
+				if (end == '}') {
+					readString();
+					expect(':');
+				}
+				skipValue();
+			} while (separator(end));
+		} else {
+			readScalar();
+		}
+	}
+
+	private void expect(char expected) throws IOException {
+		int c = skipWhitespace();
+		if (c != expected)
+			throw new IOException("expected '" + expected + "' but got " + describe(c));
+		read();
+	}
+
+	private int skipWhitespace() throws IOException {
+		int c;
+		while ((c = peek()) != -1 && Character.isWhitespace(c)) {
+			read();
+		}
+		return c;
+	}
+
+	private int peek() throws IOException {
+		if (next == -2)
+			next = in.read();
+		return next;
+	}
+
+	private int read() throws IOException {
+		int c = peek();
+		next = -2;
+		return c;
+	}
+
+	private static String describe(int c) {
+		return c == -1 ? "end of stream" : "'" + (char) c + "'";
+	}
+}
@@ -0,0 +1,253 @@
+package ar.com.threelegs.newrelic.varnish;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import com.newrelic.metrics.publish.processors.EpochCounter;
+import com.typesafe.config.Config;
+
+/**
+ * What the plugin knows about each varnishstat counter, worked out the first
+ * time the counter is seen: its metric name, its unit and whether it is
+ * reported as a rate. Afterwards, a counter costs one map lookup and a
+ * number parse per cycle.
+ * <p>
+ * Units and groups are assigned by the first matching rule of {@code units}
+ * and {@code groups}, which can be set in plugin.json as lists of
+ * {@code { "match" : "<regex>", "unit" : "..." }} and
+ * {@code { "match" : "<regex>", "group" : "..." }}.
+ * <p>
+ * Counters that stop showing up, e.g. those of a removed backend, are
+ * forgotten along with their rate state after {@link #EXPIRY} cycles.
+ * <p>
+ * Not thread safe: each instance has its own schema.
+ */
+public class StatSchema {
+
+	public static final int EXPIRY = 10;
+
+	private final String prefix;
+	private final List<Rule> units;
+	private final List<Rule> groups;
+	private final Map<Key, Counter> counters = new HashMap<Key, Counter>();
+	private final Key probe = new Key();
+	private int cycle;
+
+	public StatSchema(String prefix, List<Rule> units, List<Rule> groups) {
+		this.prefix = prefix;
+		this.units = units;
+		this.groups = groups;
+	}
+
+	public static StatSchema fromConfig(Config config) {
+		return fromConfig(config, "Varnish/");
+	}
+
+	/**
+	 * A schema naming its metrics {@code <prefix><group>/...}.
+	 */
+	public static StatSchema fromConfig(Config config, String prefix) {
+		List<Rule> units = new ArrayList<Rule>();
+		if (config.hasPath("units")) {
+			for (Config rule : config.getConfigList("units")) {
+				units.add(new Rule(rule.getString("match"), rule.getString("unit")));
+			}
+		} else {
+			units.add(new Rule("client_.*", "connections"));
+			units.add(new Rule("backend_.*", "connections"));
+			units.add(new Rule("cache_.*", "requests"));
+			units.add(new Rule("fetch_.*", "fetchs"));
+			units.add(new Rule("n_wrk.*", "threads"));
+			units.add(new Rule("n_object", "objects"));
+		}
+
+		List<Rule> groups = new ArrayList<Rule>();
+		if (config.hasPath("groups")) {
+			for (Config rule : config.getConfigList("groups")) {
+				groups.add(new Rule(rule.getString("match"), rule.getString("group")));
+			}
+		} else {
+			groups.add(new Rule("n_wrk.*", "threads"));
+		}
+		return new StatSchema(prefix, units, groups);
+	}
+
+	/**
+	 * The compiled counter for a stat, compiled now if it is new.
+	 */
+	public Counter counter(String type, String ident, String name, String description, String flag) {
+		Counter counter = counters.get(probe.set(type, ident, name));
+		if (counter == null) {
+			counter = compile(type, ident, name, description, flag);
+			counters.put(new Key().set(type, ident, name), counter);
+		}
+		counter.seen = cycle;
+		return counter;
+	}
+
+	/**
+	 * Ends a cycle: forgets the counters that weren't seen during the last
+	 * {@link #EXPIRY} ones, and returns how many.
+	 */
+	public int endCycle() {
+		int expired = 0;
+		Iterator<Counter> it = counters.values().iterator();
+		while (it.hasNext()) {
+			if (cycle - it.next().seen >= EXPIRY) {
+				it.remove();
+				expired++;
+			}
+		}
+		cycle++;
+		return expired;
+	}
+
+	public int size() {
+		return counters.size();
+	}
+
+	private Counter compile(String type, String ident, String name, String description, String flag) {
+		StringBuilder key = new StringBuilder();
+		key.append(prefix);
+
+		// does it have a custom group?
+		String group = match(groups, name);
+
+		if (group != null) {
+			key.append(group + "/");
+		} else if (type != null)
+			key.append(type + "/");
+		else {
+			key.append("main/");
+
+			int pos = name.indexOf("_");
+			if (pos != -1) {
+				key.append(name.substring(0, pos) + "/");
+			}
+		}
+
+		if (ident != null)
+			key.append(ident + "/");
+
+		key.append(description);
+
+		String unit = match(units, name);
+		if (unit == null)
+			unit = "value";
+
+		boolean rate = "a".equals(flag);
+		return new Counter(key.toString(), rate ? unit + "/sec" : unit, rate);
+	}
+
+	private static String match(List<Rule> rules, String name) {
+		for (Rule rule : rules) {
+			if (rule.pattern.matcher(name).matches())
+				return rule.value;
+		}
+		return null;
+	}
+
+	/**
+	 * Parses a varnishstat value: integers without going through
+	 * {@code NumberFormat}, longer ones as longs, anything else as a double.
+	 * Returns {@code null} for the bare {@code -} varnishstat prints for a
+	 * field without a value.
+	 */
+	public static Number parseValue(String value) {
+		int length = value.length();
+		if (length == 1 && value.charAt(0) == '-')
+			return null;
+		if (length > 0 && length < 19) {
+			long result = 0;
+			int i = value.charAt(0) == '-' ? 1 : 0;
+			for (int j = i; j < length; j++) {
+				char c = value.charAt(j);
+				if (c < '0' || c > '9')
+					return Double.valueOf(value);
+				result = result * 10 + (c - '0');
+			}
+			if (i < length)
+				return i == 1 ? -result : result;
+		}
+		try {
+			return Long.valueOf(value);
+		} catch (NumberFormatException e) {
+			// fractions, and counters past Long.MAX_VALUE
+			return Double.valueOf(value);
+		}
+	}
+
+	public static class Rule {
+		final Pattern pattern;
+		final String value;
+
+		public Rule(String regex, String value) {
+			this.pattern = Pattern.compile(regex);
+			this.value = value;
+		}
+	}
+
+	/**
+	 * A compiled counter.
+	 */
+	public static class Counter {
+		public final String metricName;
+		public final String unit;
+		public final boolean rate;
+		private EpochCounter epochCounter;
+		private int seen;
+
+		Counter(String metricName, String unit, boolean rate) {
+			this.metricName = metricName;
+			this.unit = unit;
+			this.rate = rate;
+		}
+
+		/**
+		 * The value to report for a raw varnishstat value: the value itself,
+		 * or its rate since the last cycle for accumulating counters.
+		 */
+		public Number value(String raw) {
+			return value(parseValue(raw));
+		}
+
+		public Number value(Number value) {
+			if (value == null || !rate)
+				return value;
+			if (epochCounter == null)
+				epochCounter = new EpochCounter();
+			return epochCounter.process(value);
+		}
+	}
+
+	private static class Key {
+		String type, ident, name;
+		int hash;
+
+		Key set(String type, String ident, String name) {
+			this.type = type;
+			this.ident = ident;
+			this.name = name;
+			this.hash = ((type != null ? type.hashCode() : 0) * 31 + (ident != null ? ident.hashCode() : 0)) * 31 + name.hashCode();
+			return this;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return hash == k.hash && name.equals(k.name) && (type == null ? k.type == null : type.equals(k.type))
+					&& (ident == null ? k.ident == null : ident.equals(k.ident));
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package ar.com.threelegs.newrelic.varnish;
+
+/**
+ * Where the counters of one Varnish instance are read from.
+ */
+public interface StatSource {
+
+	/**
+	 * Hands the counters of the latest snapshot to {@code handler} and
+	 * returns how many there were.
+	 */
+	int read(StatHandler handler) throws Exception;
+
+	/**
+	 * Stops a read that is taking too long; the source can be read again
+	 * afterwards.
+	 */
+	void cancel();
+
+	/**
+	 * Stops whatever the source keeps running between reads.
+	 */
+	void close();
+}
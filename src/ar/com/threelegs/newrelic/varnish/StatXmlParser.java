@@ -0,0 +1,72 @@
+package ar.com.threelegs.newrelic.varnish;
+
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streams the output of {@code varnishstat -1 -x} straight from the process:
+ * each {@code <stat>} element is handed over as soon as it is closed, without
+ * building a DOM or keeping the document in memory.
+ */
+public class StatXmlParser {
+
+	private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+
+	static {
+		FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+	}
+
+	/**
+	 * Parses one document and returns the number of stats read.
+	 */
+	public static int parse(InputStream in, StatHandler handler) throws Exception {
+		XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+		try {
+			int count = 0;
+			String type = null, ident = null, name = null, description = null, value = null, flag = null;
+			boolean inStat = false;
+
+			while (reader.hasNext()) {
+				switch (reader.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					String element = reader.getLocalName();
+					if ("stat".equals(element)) {
+						inStat = true;
+						type = ident = name = description = value = flag = null;
+					} else if (inStat) {
+						String text = reader.getElementText().trim();
+						if ("type".equals(element))
+							type = text;
+						else if ("ident".equals(element))
+							ident = text;
+						else if ("name".equals(element))
+							name = text;
+						else if ("description".equals(element))
+							description = text;
+						else if ("value".equals(element))
+							value = text;
+						else if ("flag".equals(element))
+							flag = text;
+					}
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					if ("stat".equals(reader.getLocalName())) {
+						inStat = false;
+						if (name != null && value != null) {
+							handler.stat(type, ident, name, description, value, flag);
+							count++;
+						}
+					}
+					break;
+				}
+			}
+			return count;
+		} finally {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,337 @@
+package ar.com.threelegs.newrelic.varnish;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.newrelic.metrics.publish.util.Logger;
+
+/**
+ * Reads the counters of a local Varnish straight from its shared memory file
+ * ({@code _.vsm}), mapped read-only: each read is a walk over the mapped
+ * counters, with no process and no text in between.
+ * <p>
+ * The file only holds the counter values, laid out as the C structs of each
+ * stat type ({@code MAIN}, {@code VBE}, {@code SMA}...), so the names are
+ * learned once per type from a regular varnishstat snapshot, taken through
+ * {@code layoutSource}, and checked against the mapped values before being
+ * trusted. The layout supported is the one of Varnish 4.0 and 4.1 on 64-bit
+ * hosts ({@code VSMHEAD0}, {@code ssize_t} offsets); anything else, or a
+ * layout that doesn't check out, leaves the source reading through
+ * {@code layoutSource}.
+ * <p>
+ * The file is mapped again when varnishd re-creates it (another file key)
+ * or re-allocates its chunks (another {@code alloc_seq}), which is what a
+ * restart of the master or the child process does.
+ * <p>
+ * The offsets below are those of {@code struct VSM_head} and
+ * {@code struct VSM_chunk} in Varnish 4.1's {@code vsm_priv.h}. They have only
+ * been checked against synthetic files written from that header, not against
+ * a running varnishd; what keeps a wrong offset from being reported is the
+ * check against varnishstat.
+ */
+public class VsmStatSource implements StatSource {
+
+	private static final Logger LOGGER = Logger.getLogger(VsmStatSource.class);
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	// struct VSM_head: marker[8], hdrsize, shm_size, first, alloc_seq, age
+	static final String HEAD_MARKER = "VSMHEAD0";
+	static final long HEAD_SIZE = 48;
+	private static final int HEAD_HDRSIZE = 8;
+	private static final int HEAD_FIRST = 24;
+	private static final int HEAD_ALLOC_SEQ = 32;
+
+	// struct VSM_chunk: marker[8], len, next, class[8], type[8], ident[128], then the payload
+	static final String CHUNK_MARKER = "VSMCHUNK";
+	static final int CHUNK_SIZE = 168;
+	private static final int CHUNK_LEN = 8;
+	private static final int CHUNK_NEXT = 16;
+	private static final int CHUNK_CLASS = 24;
+	private static final int CHUNK_TYPE = 32;
+	private static final int CHUNK_IDENT = 40;
+	private static final int MARKER_LENGTH = 8;
+	private static final int IDENT_LENGTH = 128;
+	private static final int MAX_CHUNKS = 100000;
+	private static final double MIN_MATCHING = 0.9;
+
+	private final File file;
+	private final StatSource layoutSource;
+	private final Map<String, List<Field>> layouts = new HashMap<String, List<Field>>();
+
+	private boolean unsupported;
+	private Object fileKey;
+	private int allocSeq;
+	private MappedByteBuffer buffer;
+	private List<Mapped> counters;
+
+	public VsmStatSource(File file, StatSource layoutSource) {
+		this.file = file;
+		this.layoutSource = layoutSource;
+	}
+
+	/**
+	 * Where varnishd keeps the shared memory file of {@code instance}: the
+	 * instance itself when it is a path, otherwise a directory named after
+	 * it (or after the host, for the default instance) under
+	 * {@code /var/lib/varnish}.
+	 */
+	public static File defaultFile(String instance) {
+		File dir;
+		if (instance != null && instance.startsWith("/")) {
+			dir = new File(instance);
+		} else {
+			String name = instance;
+			if (name == null) {
+				try {
+					name = InetAddress.getLocalHost().getHostName();
+				} catch (IOException e) {
+					name = "localhost";
+				}
+			}
+			dir = new File("/var/lib/varnish", name);
+		}
+		return new File(dir, "_.vsm");
+	}
+
+	@Override
+	public int read(StatHandler handler) throws Exception {
+		if (unsupported)
+			return layoutSource.read(handler);
+
+		try {
+			if (!mapped()) {
+				counters = null;
+				return layoutSource.read(handler);
+			}
+			if (counters == null)
+				return learn(handler);
+		} catch (IOException e) {
+			LOGGER.warn("can't read " + file + ", reading varnishstat instead: " + e.getMessage());
+			unsupported = true;
+			return layoutSource.read(handler);
+		}
+
+		MappedByteBuffer b = buffer;
+		for (Mapped m : counters) {
+			Field f = m.field;
+			handler.counter(f.type, m.ident, f.name, f.description, b.getLong(m.offset), f.flag);
+		}
+		return counters.size();
+	}
+
+	/**
+	 * Maps the file again if varnishd re-created it or re-allocated its
+	 * chunks, and returns false if it isn't there at the moment.
+	 */
+	private boolean mapped() throws IOException {
+		if (!file.canRead())
+			return false;
+
+		Object key = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+		if (buffer != null && same(key, fileKey) && buffer.getInt(HEAD_ALLOC_SEQ) == allocSeq)
+			return true;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer b = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			b.order(ByteOrder.LITTLE_ENDIAN);
+			if (b.capacity() < HEAD_SIZE || !HEAD_MARKER.equals(string(b, 0, MARKER_LENGTH)) || b.getLong(HEAD_HDRSIZE) != HEAD_SIZE)
+				throw new IOException("not a Varnish 4 shared memory file");
+
+			LOGGER.debug((buffer == null ? "mapped " : "remapped ") + file);
+			buffer = b;
+			fileKey = key;
+			allocSeq = b.getInt(HEAD_ALLOC_SEQ);
+			counters = null;
+			return true;
+		} finally {
+			// the mapping outlives the channel
+			raf.close();
+		}
+	}
+
+	/**
+	 * Reads a snapshot through {@code layoutSource}, learns the layout of the
+	 * types it has that aren't known yet and lays the counters out over the
+	 * mapped chunks.
+	 */
+	private int learn(final StatHandler handler) throws Exception {
+		final List<Field> snapshot = new ArrayList<Field>();
+		// what varnishstat printed is reported as is, whatever becomes of the layout
+		int count = layoutSource.read(new StatHandler() {
+			@Override
+			public void stat(String type, String ident, String name, String description, String value, String flag) throws Exception {
+				snapshot.add(new Field(type, ident, name, description, flag, value));
+				handler.stat(type, ident, name, description, value, flag);
+			}
+
+			@Override
+			public void counter(String type, String ident, String name, String description, long value, String flag) throws Exception {
+				snapshot.add(new Field(type, ident, name, description, flag, String.valueOf(value)));
+				handler.counter(type, ident, name, description, value, flag);
+			}
+		});
+
+		// consecutive counters of the same type and ident are one struct, in order
+		Map<String, List<Field>> learned = new HashMap<String, List<Field>>();
+		Map<String, List<Field>> seen = new HashMap<String, List<Field>>();
+		for (int i = 0; i < snapshot.size();) {
+			Field first = snapshot.get(i);
+			int j = i;
+			while (j < snapshot.size() && same(first.type, snapshot.get(j).type) && same(first.ident, snapshot.get(j).ident)) {
+				j++;
+			}
+			String type = first.type != null ? first.type : "MAIN";
+			if (!layouts.containsKey(type) && !learned.containsKey(type))
+				learned.put(type, snapshot.subList(i, j));
+			seen.put(type + "." + (first.ident != null ? first.ident : ""), snapshot.subList(i, j));
+			i = j;
+		}
+		layouts.putAll(learned);
+
+		try {
+			lay(seen);
+		} catch (IOException e) {
+			LOGGER.warn("can't read " + file + " in place, reading varnishstat instead: " + e.getMessage());
+			unsupported = true;
+		}
+		return count;
+	}
+
+	private void lay(Map<String, List<Field>> seen) throws IOException {
+		List<Mapped> laidOut = new ArrayList<Mapped>();
+		int matching = 0, checked = 0;
+		MappedByteBuffer b = buffer;
+		int size = b.capacity();
+		long chunk = b.getLong(HEAD_FIRST);
+		for (int n = 0; chunk > 0 && chunk + CHUNK_SIZE <= size; n++) {
+			int at = (int) chunk;
+			if (n == MAX_CHUNKS || !CHUNK_MARKER.equals(string(b, at, MARKER_LENGTH)))
+				throw new IOException("unexpected chunk at offset " + chunk);
+			long len = b.getLong(at + CHUNK_LEN);
+			if ("Stat".equals(string(b, at + CHUNK_CLASS, MARKER_LENGTH))) {
+				String type = string(b, at + CHUNK_TYPE, MARKER_LENGTH);
+				String ident = string(b, at + CHUNK_IDENT, IDENT_LENGTH);
+				// types varnishstat doesn't show are left out
+				List<Field> layout = layouts.get(type);
+				if (layout != null) {
+					if ((len - CHUNK_SIZE) / 8 < layout.size() || chunk + len > size)
+						throw new IOException(type + " chunk too small for the " + layout.size() + " counters varnishstat shows");
+					List<Field> values = seen.get(type + "." + ident);
+					for (int i = 0; i < layout.size(); i++) {
+						int offset = at + CHUNK_SIZE + 8 * i;
+						laidOut.add(new Mapped(layout.get(i), ident.length() > 0 ? ident : null, offset));
+						if (values != null && i < values.size()) {
+							checked++;
+							if (close(values.get(i), b.getLong(offset)))
+								matching++;
+						}
+					}
+				}
+			}
+			long next = b.getLong(at + CHUNK_NEXT);
+			if (next <= 0 || next == chunk)
+				break;
+			chunk = next;
+		}
+
+		if (checked == 0 || matching < checked * MIN_MATCHING)
+			throw new IOException("only " + matching + " of " + checked + " counters match varnishstat");
+
+		LOGGER.info("reading " + laidOut.size() + " counters of " + file + " in place");
+		counters = laidOut;
+	}
+
+	/**
+	 * Whether a mapped value could be the one varnishstat printed a moment
+	 * ago: counters only move forward, gauges either way, neither by much.
+	 */
+	private static boolean close(Field printed, long value) {
+		Number number;
+		try {
+			number = StatSchema.parseValue(printed.value);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		if (number == null)
+			return false;
+		long expected = number.longValue();
+		long slack = Math.max(1000, Math.abs(expected) / 10);
+		long diff = value - expected;
+		if ("a".equals(printed.flag) || "c".equals(printed.flag))
+			return diff >= 0 && diff <= slack;
+		return Math.abs(diff) <= slack;
+	}
+
+	private static boolean same(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * A NUL-terminated string of at most {@code max} bytes.
+	 */
+	private static String string(MappedByteBuffer b, int offset, int max) {
+		byte[] bytes = new byte[max];
+		int length = 0;
+		while (length < max) {
+			byte c = b.get(offset + length);
+			if (c == 0)
+				break;
+			bytes[length++] = c;
+		}
+		return new String(bytes, 0, length, ASCII);
+	}
+
+	@Override
+	public void cancel() {
+		layoutSource.cancel();
+	}
+
+	@Override
+	public void close() {
+		layoutSource.close();
+	}
+
+	@Override
+	public String toString() {
+		return file.getPath();
+	}
+
+	private static class Field {
+		final String type, ident, name, description, flag, value;
+
+		Field(String type, String ident, String name, String description, String flag, String value) {
+			this.type = type;
+			this.ident = ident;
+			this.name = name;
+			this.description = description;
+			this.flag = flag;
+			this.value = value;
+		}
+	}
+
+	private static class Mapped {
+		final Field field;
+		final String ident;
+		final int offset;
+
+		Mapped(Field field, String ident, int offset) {
+			this.field = field;
+			this.ident = ident;
+			this.offset = offset;
+		}
+	}
+}